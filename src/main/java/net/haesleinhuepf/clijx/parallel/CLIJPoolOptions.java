@@ -28,8 +28,14 @@ public class CLIJPoolOptions extends DynamicCommand {
     @Parameter(label = "Pool Configuration", description = "device_idx:n_threads, device_idx:n_threads ...")
     String pool_specification = "0:1";
 
+    @Parameter(label = "Contexts creation", choices = {"EAGER", "ASYNC", "LAZY"},
+            description = "EAGER: wait for all contexts, ASYNC: start as soon as one context is ready, LAZY: create contexts on demand")
+    String startup = "ASYNC";
+
     final public static String KEY = CLIJPoolOptions.class.getName()+".pool_specification";
 
+    final public static String KEY_STARTUP = CLIJPoolOptions.class.getName()+".startup";
+
     public static int[] getDevices() {
         String prefSpecs = ij.Prefs.get(KEY,"0:1");
         return parseDeviceThreads(prefSpecs)[0];
@@ -44,6 +50,19 @@ public class CLIJPoolOptions extends DynamicCommand {
         ij.Prefs.set(KEY, specs);
     }
 
+    public static CLIJxPool.Startup getStartup() {
+        try {
+            return CLIJxPool.Startup.valueOf(ij.Prefs.get(KEY_STARTUP, CLIJxPool.Startup.ASYNC.name()));
+        } catch (IllegalArgumentException e) {
+            System.out.println("CLIJ Pool Option ERROR: Invalid startup mode, using "+CLIJxPool.Startup.ASYNC);
+            return CLIJxPool.Startup.ASYNC;
+        }
+    }
+
+    public static void setStartup(CLIJxPool.Startup startup) {
+        ij.Prefs.set(KEY_STARTUP, startup.name());
+    }
+
     @Override
     public void run() {
 
@@ -68,17 +87,18 @@ public class CLIJPoolOptions extends DynamicCommand {
 
         // Second - store specification in prefs
         ij.Prefs.set(CLIJPoolOptions.KEY, pool_specification);
+        ij.Prefs.set(CLIJPoolOptions.KEY_STARTUP, startup);
 
-        // Third - creates pool, and take care of closing the previous one
+        // Third - creates pool, or resizes the existing one without interrupting its work
         if (CLIJxPool.isIntanceSet()) {
-            IJ.log("A CLIJxPool instance is already set, closing it...");
-            CLIJxPool.getInstance().shutdown();
-            IJ.log("Previous pool closed.");
+            IJ.log("A CLIJxPool instance is already set, resizing it...");
+            resize(CLIJxPool.getInstance(), specs[0], specs[1]);
+            IJ.log("Pool resized.");
+        } else {
+            IJ.log("- Creating CLIJ Pool:");
+            CLIJxPool.getInstance();
         }
 
-        IJ.log("- Creating CLIJ Pool:");
-        CLIJxPool.getInstance();
-
         IJ.log("- CLIJ Pool specifications:");
         IJ.log(CLIJxPool.getInstance().getDetails());
     }
@@ -106,6 +126,27 @@ public class CLIJPoolOptions extends DynamicCommand {
     }
 
 
+    /**
+     * Adds or drains instances of a running pool to match a specification, devices which are part of the pool
+     * but not of the specification are removed from the pool. Instances being created and planned ones (LAZY startup)
+     * count as instances of their device, see {@link ContextPool#nExpectedInstances(int)}
+     * @param pool the pool to resize
+     * @param devices device indices
+     * @param threads number of instances for each device
+     */
+    public static void resize(CLIJxPool pool, int[] devices, int[] threads) {
+        for (int device : pool.getDeviceIndices()) {
+            boolean isSpecified = false;
+            for (int d : devices) {
+                isSpecified = isSpecified || (d == device);
+            }
+            if (!isSpecified) pool.setNumberOfInstances(device, 0);
+        }
+        for (int i = 0; i < devices.length; i++) {
+            pool.setNumberOfInstances(devices[i], threads[i]);
+        }
+    }
+
     public static int[][] parseDeviceThreads(String input) {
         String[] pairs = input.split(",");
         ArrayList<Integer> deviceIndices = new ArrayList<>();
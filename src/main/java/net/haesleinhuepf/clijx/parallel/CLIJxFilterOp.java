@@ -1,20 +1,36 @@
 package net.haesleinhuepf.clijx.parallel;
 
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 
 import ij.process.FloatProcessor;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.haesleinhuepf.clij.converters.implementations.ClearCLBufferToRandomAccessibleIntervalConverter;
-import net.haesleinhuepf.clij.converters.implementations.RandomAccessibleIntervalToClearCLBufferConverter;
 import net.haesleinhuepf.clijx.CLIJx;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
@@ -22,6 +38,23 @@ import net.imglib2.view.Views;
 /**
  * A cell loader that fill {@link RandomAccessibleInterval} with data that is
  * generated by CLIJx filters. It automatically selects an idle GPU to process the tile on.
+ * <p>
+ * The result of the filter is computed on the GPU in the type of the output image if one is given
+ * (8 or 16 bit integer types cut the download bandwidth compared to 32 bit floats). Binary results can
+ * additionally be bit-packed on the GPU, so that only one bit per pixel is transferred back and unpacked directly
+ * into the cell. This only saves transfer: the cells of the output image keep their own type.
+ * <p>
+ * Tiles which do not need to be processed, background tiles for instance, can be skipped with a {@link TileSkip}:
+ * their cells are filled with a constant without acquiring a GPU.
+ * <p>
+ * The padded input tile is evaluated from the source before a GPU is acquired, so that the GPU is only held to upload,
+ * process and download the tile. By default, it is evaluated by the thread requesting the cell. With a
+ * {@link TileStaging}, the tiles of the upcoming cells can be evaluated ahead on a separate pool of CPU threads, see
+ * {@link #stageAhead()}, which helps when the source is expensive (an interpolated or transformed view for instance).
+ * <p>
+ * A tile which fails on a GPU (an OpenCL error) is retried, on another GPU if one is idle, and a CLIJx instance failing
+ * repeatedly is quarantined by the pool, see {@link #setMaxAttempts(int)} and {@link ContextPool#setQuarantine(int, int)}.
+ * Other errors, of the tile processor for instance, are thrown right away.
  *
  * @author Stephan Saalfeld, Robert Haase
  * @param <T> output type
@@ -33,12 +66,53 @@ public class CLIJxFilterOp<T extends RealType<T> & NativeType<T>, S extends Real
     protected final long[] padding;
     protected final CLIJxPool clijxPool;
     protected final Class<? extends TileProcessor> klass;
+    protected final NativeTypeEnum outputType; // null: same type as the input tile
+    protected final boolean bitPacked;
+    protected ToIntFunction<Interval> priority = cell -> CLIJxPool.DEFAULT_PRIORITY;
+    protected Predicate<Interval> isNeeded = null;
+    protected TileSkip<S> skip = null;
+    protected TileStaging staging = null;
+    protected int maxAttempts = 2;
+    protected volatile Map<String, String> parameters = Collections.emptyMap(); // replaced, never modified
+
+    final private AtomicLong nProcessedTiles = new AtomicLong();
+    final private AtomicLong nSkippedTiles = new AtomicLong();
 
     public CLIJxFilterOp(
             final RandomAccessible<S> source,
             final CLIJxPool clijxPool,
             final Class<? extends TileProcessor> klass,
             final long... padding) {
+        this(source, clijxPool, klass, null, false, padding);
+    }
+
+    /**
+     * @param outputType type of the output image, the filter writes its result in a GPU buffer of this type,
+     *                   which must be {@link UnsignedByteType}, {@link UnsignedShortType} or {@link FloatType}
+     */
+    public CLIJxFilterOp(
+            final RandomAccessible<S> source,
+            final CLIJxPool clijxPool,
+            final Class<? extends TileProcessor> klass,
+            final T outputType,
+            final long... padding) {
+        this(source, clijxPool, klass, outputType, false, padding);
+    }
+
+    /**
+     * @param outputType type of the output image, the filter writes its result in a GPU buffer of this type,
+     *                   which must be {@link UnsignedByteType}, {@link UnsignedShortType} or {@link FloatType}
+     * @param bitPacked if true, the result of the filter is considered binary (0 or not 0) and is packed on the GPU
+     *                  to one bit per pixel before being transferred back; the output image receives 0 or 1, stored
+     *                  in its own type (the transfer is smaller, not the cells)
+     */
+    public CLIJxFilterOp(
+            final RandomAccessible<S> source,
+            final CLIJxPool clijxPool,
+            final Class<? extends TileProcessor> klass,
+            final T outputType,
+            final boolean bitPacked,
+            final long... padding) {
 
         this.source = source;
         final int n = source.numDimensions();
@@ -48,44 +122,248 @@ public class CLIJxFilterOp<T extends RealType<T> & NativeType<T>, S extends Real
             this.padding = Arrays.copyOf(padding, n);
         this.clijxPool = clijxPool;
         this.klass = klass;
+        this.outputType = outputType == null ? null : Util.outputTypeOf(outputType);
+        this.bitPacked = bitPacked;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * @param priority computes the priority of the request made to the pool for a cell, cells with a higher
+     *                 priority are processed first (for instance the cells which are currently visible)
+     */
+    public void setPriority(final ToIntFunction<Interval> priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @param isNeeded evaluated right before a CLIJx instance is handed to the request of a cell, if it returns
+     *                 false, the cell is not processed and {@link #accept(RandomAccessibleInterval)} throws a
+     *                 {@link java.util.concurrent.CancellationException}. Can be null (the default) if all cells are needed.
+     */
+    public void setIsNeeded(final Predicate<Interval> isNeeded) {
+        this.isNeeded = isNeeded;
+    }
+
+    /**
+     * Sets a parameter of the processor, see {@link Util#newTileProcessor(Class, Map)}. The cells computed before
+     * are not updated, see {@link CellInvalidation} to recompute them. A cell being computed while the parameter
+     * changes is computed again with the new parameters before it is returned.
+     *
+     * @param name name of a public field of the processor
+     * @param value value of the field
+     * @return true if the value of the parameter changed
+     */
+    public synchronized boolean setParameter(final String name, final String value) {
+        if (value.equals(parameters.get(name))) return false;
+        final Map<String, String> changed = new HashMap<>(parameters);
+        changed.put(name, value);
+        parameters = Collections.unmodifiableMap(changed);
+        return true;
+    }
+
+    /**
+     * @return the parameters of the processor set so far
+     */
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @param skip evaluated on the padded input tile of each cell before anything is sent to the GPU: if it
+     *             returns a value, the cell is filled with it and the tile is not processed. Can be null
+     *             (the default) if all tiles are processed.
+     */
+    public void setSkip(final TileSkip<S> skip) {
+        this.skip = skip;
+    }
+
+    /**
+     * @param staging materializes the padded input tiles of upcoming cells on its own CPU threads, see
+     *                {@link #stageAhead()}. Can be null (the default): tiles are then materialized by the thread
+     *                requesting the cell, before a GPU is acquired.
+     */
+    public void setStaging(final TileStaging staging) {
+        this.staging = staging;
+    }
+
+    /**
+     * Creates a producer for the staging of this op, to be called with the upcoming cells, typically by the prefetcher
+     * of a {@link CellTraversal}:
+     * <pre>
+     * traversal.setPrefetch(lookahead, op.stageAhead());
+     * </pre>
+     * Blocks while the staging is full, see {@link TileStaging#stageAhead(RandomAccessibleInterval)}.
+     * @return stages the padded input tile of a cell, does nothing if no staging is set
+     */
+    public Consumer<Interval> stageAhead() {
+        return cell -> {
+            final TileStaging staging = this.staging;
+            if (staging != null) staging.stageAhead(Views.interval(source, Intervals.expand(cell, padding)));
+        };
+    }
+
+    /**
+     * @param maxAttempts number of times a tile is processed at most: a tile which fails on the GPU, because of a
+     *                    driver error or a lost device for instance, is processed again, on another GPU if one is idle. 2 by default.
+     *                    See {@link ContextPool#runWithRetry(int, java.util.function.BooleanSupplier, int, java.util.function.Function)}.
+     */
+    public void setMaxAttempts(final int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * @return number of tiles processed on the GPU so far
+     */
+    public long getNumberOfProcessedTiles() {
+        return nProcessedTiles.get();
+    }
+
+    /**
+     * @return number of tiles skipped so far, see {@link #setSkip(TileSkip)}
+     */
+    public long getNumberOfSkippedTiles() {
+        return nSkippedTiles.get();
+    }
+
+    /**
+     * @return ratio of skipped tiles among all tiles so far, 0 if no tile was requested yet
+     */
+    public double getSkipRatio() {
+        final long skipped = nSkippedTiles.get();
+        final long total = skipped + nProcessedTiles.get();
+        return total == 0 ? 0 : (double) skipped / total;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
     @Override
     public void accept(final RandomAccessibleInterval<T> cell) {
-        // get a CLIJx instance running on one particular GPU
-        CLIJx clijx = clijxPool.getIdleCLIJx();
-
-        // push the image to the GPU
-        final RandomAccessibleIntervalToClearCLBufferConverter rai2cl = new RandomAccessibleIntervalToClearCLBufferConverter();
-        rai2cl.setCLIJ(clijx.getCLIJ());
-        final ClearCLBuffer input = rai2cl.convert(Views.interval(source, Intervals.expand(cell, padding)));
-        // create memory on GPU for result image
-        final ClearCLBuffer output = clijx.create(input);
-
-        // process the image
-        TileProcessor filter;
+        // fill the cell with a constant if the tile does not need to be processed
+        final TileSkip<S> skip = this.skip;
+        if (skip != null) {
+            final Double fillValue = skip.fillValue(Views.interval(source, Intervals.expand(cell, padding)));
+            if (fillValue != null) {
+                discardStaged(cell);
+                for (T pixel : Views.flatIterable(cell)) {
+                    pixel.setReal(fillValue);
+                }
+                nSkippedTiles.incrementAndGet();
+                return;
+            }
+        }
+
+        // give up a cell which is not needed anymore before anything is computed
+        final Predicate<Interval> isNeeded = this.isNeeded;
+        if ((isNeeded != null) && !isNeeded.test(cell)) {
+            discardStaged(cell);
+            throw new CancellationException("Cell " + Intervals.toString(cell) + " is not needed anymore");
+        }
+        final RandomAccessibleInterval<S> tile = Views.interval(source, Intervals.expand(cell, padding));
+        final int priority = this.priority.applyAsInt(cell);
+        final BooleanSupplier isCellNeeded = isNeeded == null ? null : () -> isNeeded.test(cell); // throws a CancellationException if the cell is not needed anymore
+
+        // the map of parameters is replaced when a parameter changes: if it changed while the cell was computed, the
+        // cell may already have been invalidated, and would be cached with the old parameters. It is computed again
+        // with the latest parameters, and counted once.
+        Map<String, String> parameters;
+        do {
+            parameters = this.parameters;
+            compute(cell, tile, parameters, priority, isCellNeeded);
+        } while (this.parameters != parameters);
+        nProcessedTiles.incrementAndGet();
+    }
+
+    private void discardStaged(final Interval cell) {
+        final TileStaging staging = this.staging;
+        if (staging != null) staging.discard(Intervals.expand(cell, padding));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compute(final RandomAccessibleInterval<T> cell, final RandomAccessibleInterval<S> tile, final Map<String, String> parameters, final int priority, final BooleanSupplier isCellNeeded) {
+        // evaluate the padded tile on the CPU, or wait for it to be evaluated if it is staged ahead, before holding a GPU
+        final TileStaging staging = this.staging;
+        final TileStaging.StagedTile staged = staging == null ? TileStaging.materialize(tile) : staging.take(tile);
+
+        // create the processor before holding a GPU, invalid parameters are not a failure of the GPU
+        final TileProcessor filter = Util.newTileProcessor(klass, parameters);
+
+        // process the tile on a CLIJx instance running on one particular GPU. The instance is always returned to the
+        // pool, or quarantined if it keeps failing on the GPU, and a tile failing on the GPU is retried on another GPU if
+        // one is idle
+        final byte[] bits;
+        final RandomAccessibleInterval<T> result;
+        if (bitPacked) {
+            bits = clijxPool.runWithRetry(priority, isCellNeeded, maxAttempts,
+                    clijx -> process(clijx, staged, filter, output -> pullBitPacked(clijx, output)));
+            result = null;
+        } else {
+            bits = null;
+            result = clijxPool.runWithRetry(priority, isCellNeeded, maxAttempts,
+                    clijx -> process(clijx, staged, filter, output -> {
+                        final ClearCLBufferToRandomAccessibleIntervalConverter cl2rai = new ClearCLBufferToRandomAccessibleIntervalConverter();
+                        cl2rai.setCLIJ(clijx.getCLIJ());
+                        return (RandomAccessibleInterval<T>) cl2rai.convert(output);
+                    }));
+        }
+
+        final RandomAccessibleInterval<T> target = Views.translate(Views.zeroMin(cell), padding);
+        if (bitPacked) {
+            Util.unpackBits(bits, Intervals.dimensionsAsLongArray(tile), target);
+        } else {
+            Util.copyReal(result, target);
+        }
+    }
+
+    private <R> R process(final CLIJx clijx, final TileStaging.StagedTile staged, final TileProcessor filter, final Function<ClearCLBuffer, R> pull) {
+        ClearCLBuffer input = null;
+        ClearCLBuffer output = null;
         try {
-            filter = klass.getDeclaredConstructor().newInstance();
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+            // push the image to the GPU
+            input = CLIJxPool.trackBuffer(clijx, staged.upload(clijx));
+            // create memory on GPU for result image
+            output = CLIJxPool.trackBuffer(clijx, outputType == null ? clijx.create(input) : clijx.create(input.getDimensions(), outputType));
+
+            // process the image
+            filter.setCLIJx(clijx);
+            filter.accept(input, output);
+
+            // pull the result image back
+            return pull.apply(output);
+        } finally {
+            // clean up
+            CLIJxPool.closeBuffer(clijx, input);
+            CLIJxPool.closeBuffer(clijx, output);
         }
-        filter.setCLIJx(clijx);
-        filter.accept(input, output);
+    }
+
+    /**
+     * Packs a binary buffer on the GPU, 8 pixels along X per byte, and transfers the packed bytes back.
+     *
+     * @param clijx instance the buffer belongs to
+     * @param binary buffer holding 0 or not 0 values
+     * @return the packed bits, see {@link Util#unpackBits(byte[], long[], RandomAccessibleInterval)}
+     */
+    protected static byte[] pullBitPacked(final CLIJx clijx, final ClearCLBuffer binary) {
+        final long[] dimensions = binary.getDimensions();
+        final long[] packedDimensions = dimensions.clone();
+        packedDimensions[0] = (dimensions[0] + 7) / 8;
+        final ClearCLBuffer packed = CLIJxPool.trackBuffer(clijx, clijx.create(packedDimensions, NativeTypeEnum.UnsignedByte));
 
-        // pull the result image back
-        final ClearCLBufferToRandomAccessibleIntervalConverter cl2rai = new ClearCLBufferToRandomAccessibleIntervalConverter();
-        cl2rai.setCLIJ(clijx.getCLIJ());
-        final RandomAccessibleInterval<T> result = cl2rai.convert(output);
+        final long[] globalSizes = new long[]{packedDimensions[0], 1, 1};
+        System.arraycopy(packedDimensions, 1, globalSizes, 1, packedDimensions.length - 1);
+        final HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", binary);
+        parameters.put("dst", packed);
+        parameters.put("width", (int) dimensions[0]);
+        clijx.execute(CLIJxFilterOp.class, "pack_binary_x.cl", "pack_binary", packed.getDimensions(), globalSizes, parameters);
 
-        // clean up
-        input.close();
-        output.close();
-        clijxPool.setCLIJxIdle(clijx);
+        final int size = (int) Intervals.numElements(packedDimensions);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        packed.writeTo(buffer, true);
+        CLIJxPool.closeBuffer(clijx, packed);
 
-        // todo: this is an additional copy-step which might not be necessary
-        Util.copyReal(result, Views.translate(Views.zeroMin(cell), padding));
+        final byte[] bits = new byte[size];
+        buffer.rewind();
+        buffer.get(bits);
+        return bits;
     }
 
 
@@ -100,6 +378,7 @@ public class CLIJxFilterOp<T extends RealType<T> & NativeType<T>, S extends Real
          * Copy the contents of a source {@link RandomAccessible} in an
          * interval defined by and target {@link RandomAccessibleInterval}
          * into that target {@link RandomAccessibleInterval}.
+         * Array backed images are copied in bulk, see {@link FastCopy}.
          *
          * @param <T>
          * @param source
@@ -109,14 +388,14 @@ public class CLIJxFilterOp<T extends RealType<T> & NativeType<T>, S extends Real
                 final RandomAccessible<? extends T> source,
                 final RandomAccessibleInterval<T> target) {
 
-            Views.flatIterable(Views.interval(Views.pair(source, target), target)).forEach(
-                    pair -> pair.getB().set(pair.getA()));
+            FastCopy.copy(source, target);
         }
 
         /**
          * Copy the contents of a source {@link RandomAccessible} in an
          * interval defined by and target {@link RandomAccessibleInterval}
          * into that target {@link RandomAccessibleInterval}.
+         * Array backed images are copied in bulk, see {@link FastCopy}.
          *
          * @param <T>
          * @param source
@@ -126,8 +405,115 @@ public class CLIJxFilterOp<T extends RealType<T> & NativeType<T>, S extends Real
                 final RandomAccessible<? extends T> source,
                 final RandomAccessibleInterval<? extends S> target) {
 
-            Views.flatIterable(Views.interval(Views.pair(source, target), target)).forEach(
-                    pair -> pair.getB().setReal(pair.getA().getRealDouble()));
+            FastCopy.copyReal(source, target);
+        }
+
+        /**
+         * Creates a {@link TileProcessor} with its no-argument constructor and sets its parameters.
+         * Parameters are the public, non-final, fields of the processor, given by name as Strings, which are
+         * converted to the type of the field (primitive types, their wrappers and String).
+         *
+         * @param klass class of the processor
+         * @param parameters field values by field name, can be null
+         * @return the new processor
+         */
+        static TileProcessor newTileProcessor(final Class<? extends TileProcessor> klass, final Map<String, String> parameters) {
+            final TileProcessor processor;
+            try {
+                processor = klass.getDeclaredConstructor().newInstance();
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
+                e.printStackTrace();
+                throw new RuntimeException(e);
+            }
+            if (parameters == null) return processor;
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                try {
+                    final Field field = klass.getField(parameter.getKey());
+                    final Class<?> type = field.getType();
+                    final String value = parameter.getValue();
+                    if ((type == int.class) || (type == Integer.class)) field.set(processor, Integer.parseInt(value));
+                    else if ((type == long.class) || (type == Long.class)) field.set(processor, Long.parseLong(value));
+                    else if ((type == float.class) || (type == Float.class)) field.set(processor, Float.parseFloat(value));
+                    else if ((type == double.class) || (type == Double.class)) field.set(processor, Double.parseDouble(value));
+                    else if ((type == boolean.class) || (type == Boolean.class)) field.set(processor, Boolean.parseBoolean(value));
+                    else if (type == String.class) field.set(processor, value);
+                    else throw new IllegalArgumentException("Unsupported type " + type.getSimpleName() + " for parameter " + parameter.getKey());
+                } catch (NoSuchFieldException | IllegalAccessException e) {
+                    throw new IllegalArgumentException("Invalid parameter " + parameter.getKey() + " for " + klass.getName(), e);
+                }
+            }
+            return processor;
+        }
+
+        /**
+         * Unpack bits packed along X, 8 pixels per byte with the first pixel in the lowest bit, and lines
+         * padded to a full byte, as produced by the pack_binary kernel.
+         *
+         * @param bits packed bits
+         * @param dimensions dimensions of the unpacked image
+         * @return an image holding 0 or 1
+         */
+        static ArrayImg<UnsignedByteType, ByteArray> unpackBits(final byte[] bits, final long[] dimensions) {
+            final ArrayImg<UnsignedByteType, ByteArray> img = ArrayImgs.unsignedBytes(dimensions);
+            unpackBits(bits, dimensions, img);
+            return img;
+        }
+
+        /**
+         * Unpack bits, see {@link #unpackBits(byte[], long[])}, directly into a target, in bulk if the target is
+         * array backed (see {@link FastCopy}).
+         *
+         * @param bits packed bits
+         * @param dimensions dimensions of the unpacked image, which starts at 0
+         * @param target receives 0 or 1, its interval must be contained in the unpacked image
+         */
+        static void unpackBits(final byte[] bits, final long[] dimensions, final RandomAccessibleInterval<? extends RealType<?>> target) {
+            FastCopy.unpackBits(bits, dimensions, target);
+        }
+
+        /**
+         * @param type a pixel type
+         * @return the corresponding GPU buffer type among the ones supported by CLIJ (8 bit, 16 bit and float),
+         * {@link NativeTypeEnum#Float} for any other type, which is converted to float on upload
+         */
+        static NativeTypeEnum nativeTypeOf(final Type<?> type) {
+            if (type instanceof UnsignedByteType) return NativeTypeEnum.UnsignedByte;
+            if (type instanceof UnsignedShortType) return NativeTypeEnum.UnsignedShort;
+            return NativeTypeEnum.Float;
+        }
+
+        /**
+         * @param type the pixel type of an output image
+         * @return the GPU buffer type a filter writes its result into
+         * @throws IllegalArgumentException if CLIJ has no buffer of this type (only 8 bit, 16 bit and float)
+         */
+        static NativeTypeEnum outputTypeOf(final Type<?> type) {
+            if ((type instanceof UnsignedByteType) || (type instanceof UnsignedShortType) || (type instanceof FloatType)) {
+                return nativeTypeOf(type);
+            }
+            throw new IllegalArgumentException("Unsupported output type " + type.getClass().getSimpleName()
+                    + ", use UnsignedByteType, UnsignedShortType or FloatType");
+        }
+
+        /**
+         * Copy a {@link RandomAccessibleInterval} into a new zero-min {@link ArrayImg} of one of the types
+         * supported by CLIJ, for instance to read a lazily loaded image once before it is processed.
+         *
+         * @param source the image to copy
+         * @param type type of the copy, see {@link #nativeTypeOf(Type)}
+         * @return the copy
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static ArrayImg<?, ?> toArrayImg(final RandomAccessibleInterval<? extends RealType<?>> source, final NativeTypeEnum type) {
+            final long[] dimensions = Intervals.dimensionsAsLongArray(source);
+            final ArrayImg img;
+            switch (type) {
+                case UnsignedByte: img = ArrayImgs.unsignedBytes(dimensions); break;
+                case UnsignedShort: img = ArrayImgs.unsignedShorts(dimensions); break;
+                default: img = ArrayImgs.floats(dimensions);
+            }
+            copyReal((RandomAccessibleInterval) Views.zeroMin(source), img);
+            return img;
         }
 
         /**
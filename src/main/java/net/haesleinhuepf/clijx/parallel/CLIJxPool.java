@@ -1,11 +1,19 @@
 package net.haesleinhuepf.clijx.parallel;
 
 import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.clearcl.exceptions.ClearCLException;
 import net.haesleinhuepf.clijx.CLIJx;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 
 /**
  * The CLIJxPool holds instances of CLIJx allowing to execute operations on multiple OpenCL devices / GPUs at a time.
@@ -19,15 +27,92 @@ import java.util.concurrent.ArrayBlockingQueue;
  * a task is done with a particular CLIJx instance, to recycle (put back into the pool) the instance by
  * calling {@link CLIJxPool#setCLIJxIdle(CLIJx)}. This device does not touch the memory state of the CLIJx instances.
  * It is thus also the responsibility of the caller to avoid memory leaks.
+ * <p>
+ * Waiting callers are not served in a strict FIFO order: a request can be issued with a priority through
+ * {@link CLIJxPool#request(int, BooleanSupplier)}, and the highest priority request is served first when an instance
+ * becomes idle. A request which is still waiting can be re-prioritized or cancelled, for instance when a viewer
+ * does not need a tile anymore, so that stale requests never take a CLIJx instance from the pool.
+ * <p>
+ * The pool is elastic: instances can be added with {@link CLIJxPool#addCLIJx(int)} or drained with
+ * {@link CLIJxPool#removeCLIJx(int, int)} while it is running. A busy instance which is drained keeps doing its job
+ * and is closed when it is returned to the pool. {@link CLIJxPoolAutoscaler} uses these methods to adapt the number
+ * of instances per device to the load.
+ * <p>
+ * Besides the blocking methods, instances can be acquired asynchronously with
+ * {@link CLIJxPool#acquireAsync(int, long, TimeUnit, Executor)}, or a task can be run on a pooled instance which is
+ * always released afterwards with {@link CLIJxPool#submit(int, Function)}. These methods never block the calling
+ * thread, and the blocking ones only wait on futures, never inside a monitor, which makes them safe to call from
+ * virtual threads.
+ * <p>
+ * Contexts are created in parallel. Depending on the {@link Startup} mode, the constructor waits for all of them,
+ * returns as soon as the first one is ready, or creates none of them and lets requests trigger their creation.
+ * <p>
+ * An instance which failed during a task (a driver error, a lost device) is returned with
+ * {@link CLIJxPool#releaseFailed(Object, Throwable)}, and quarantined if it keeps failing.
+ * {@link CLIJxPool#runWithRetry(int, BooleanSupplier, int, Function)} retries a failed task on another device.
+ * <p>
+ * The scheduling itself is implemented by {@link ContextPool}, which can also run on simulated devices.
  */
-public class CLIJxPool {
+public class CLIJxPool extends ContextPool<CLIJx> {
+
+    /**
+     * Creates CLIJx instances on OpenCL devices
+     */
+    public static final Factory<CLIJx> CLIJX_FACTORY = new Factory<CLIJx>() {
+        @Override
+        public CLIJx create(int deviceIndex) {
+            return new CLIJx(new CLIJ(deviceIndex));
+        }
+
+        @Override
+        public void close(CLIJx clijx) {
+            ALLOCATED_BYTES.remove(clijx);
+            clijx.close();
+        }
+
+        @Override
+        public String getName(CLIJx clijx) {
+            return clijx.getGPUName();
+        }
+
+        @Override
+        public long getGlobalMemoryInBytes(CLIJx clijx) {
+            return clijx.getCLIJ().getGPUMemoryInBytes();
+        }
+
+        /**
+         * OpenCL does not report the free memory of a device: the buffers counted with
+         * {@link CLIJxPool#trackBuffer(CLIJx, ClearCLBuffer)} are summed up instead.
+         */
+        @Override
+        public long getUsedMemoryInBytes(CLIJx clijx) {
+            AtomicLong bytes = ALLOCATED_BYTES.get(clijx);
+            return bytes == null ? 0 : bytes.get();
+        }
+
+        /**
+         * Errors of ClearCL (OpenCL errors included) and of the OpenCL bindings come from the device, anywhere in
+         * the chain of causes.
+         */
+        @Override
+        public boolean isDeviceFailure(Throwable error) {
+            for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+                if (cause instanceof ClearCLException) return true;
+                String className = cause.getClass().getName();
+                if (className.startsWith("org.jocl.") || className.startsWith("com.nativelibs4java.opencl.")) return true;
+                if (cause.getCause() == cause) break;
+            }
+            return false;
+        }
+    };
 
-    final private ArrayBlockingQueue<CLIJx> idleInstances; // The core of the pooling mechanism
-    final private List<CLIJx> allInstances = new ArrayList<>(); // Stores all instances which are part of this pool
-    private volatile boolean isShuttingDown = false; // Flags whether the pool is currently being shut down (stays true when shutting down is finished)
+    // Bytes of the buffers allocated on each instance, see trackBuffer
+    final static private Map<CLIJx, AtomicLong> ALLOCATED_BYTES = Collections.synchronizedMap(new WeakHashMap<>());
 
     // Static shared instance
-    static private CLIJxPool INSTANCE = null;
+    static private volatile CLIJxPool INSTANCE = null;
+    // Held while the default pool is created, so that setInstance and isIntanceSet do not wait for its startup
+    final static private Object CREATION_LOCK = new Object();
 
     /**
      * Unless you know what you are doing, please use {@link CLIJxPool#getInstance()} instead of this constructor
@@ -35,20 +120,17 @@ public class CLIJxPool {
      * @param numberOfInstancesPerCLIJ specifies how many CLIJx instances are created per GPU device
      */
     public CLIJxPool(int[] deviceIndices, int[] numberOfInstancesPerCLIJ) {
-        int sum = 0;
-        for (int v : numberOfInstancesPerCLIJ) {
-            sum = sum + v;
-        }
-
-        idleInstances = new ArrayBlockingQueue<>(sum, true);
+        this(deviceIndices, numberOfInstancesPerCLIJ, Startup.EAGER);
+    }
 
-        for (int i = 0; i < deviceIndices.length; i++) {
-            for (int j = 0; j < numberOfInstancesPerCLIJ[i]; j++) {
-                CLIJx clijx = new CLIJx(new CLIJ(deviceIndices[i]));
-                idleInstances.add(clijx);
-                allInstances.add(clijx);
-            }
-        }
+    /**
+     * Unless you know what you are doing, please use {@link CLIJxPool#getInstance()} instead of this constructor
+     * @param deviceIndices array indicating the device indices
+     * @param numberOfInstancesPerCLIJ specifies how many CLIJx instances are created per GPU device
+     * @param startup specifies when the CLIJx instances are created, see {@link Startup}
+     */
+    public CLIJxPool(int[] deviceIndices, int[] numberOfInstancesPerCLIJ, Startup startup) {
+        super(CLIJX_FACTORY, deviceIndices, numberOfInstancesPerCLIJ, startup);
         System.out.println("CLIJxPool created:");
         System.out.println(this.getDetails());
     }
@@ -57,28 +139,41 @@ public class CLIJxPool {
      * @return a static CLIJxPool that will attempt to use all available GPU Devices and create multiple
      * CLIJx instance into a single static shared pool. The pool is initialized on the first call and is then reused,
      * unless {@link CLIJxPool#shutdown()} (or {@link CLIJxPool#forceShutdown()}) is called, which will force the creation
-     * of a new pool.
+     * of a new pool. The default pool uses the startup mode of {@link CLIJPoolOptions#getStartup()}, {@link Startup#ASYNC}
+     * unless specified otherwise: the first call returns as soon as one instance is ready.
      * <p>
      * Method 2: the CLIJxPool construction, and if needed, {@link CLIJxPool#setInstance(CLIJxPool)} will set the
      * static CLIJxPool instance which is returned from this method
      */
-    public static synchronized CLIJxPool getInstance() {
-        if (INSTANCE != null) {
-            if (INSTANCE.isShuttingDown) {
-                System.err.println("CLIJxPool instance is shutting down!");
+    public static CLIJxPool getInstance() {
+        CLIJxPool pool = INSTANCE;
+        if (pool == null) {
+            synchronized (CREATION_LOCK) {
+                pool = INSTANCE;
+                if (pool == null) {
+                    // Pool not created
+                    pool = createDefaultPool();
+                    synchronized (CLIJxPool.class) {
+                        if (INSTANCE == null) {
+                            INSTANCE = pool;
+                        } else { // Set with setInstance meanwhile
+                            pool.shutdown();
+                            pool = INSTANCE;
+                        }
+                    }
+                }
             }
-            return INSTANCE;
         }
-
-        // Pool not created
-        INSTANCE = createDefaultPool();
-        return INSTANCE;
+        if (pool.isShuttingDown()) {
+            System.err.println("CLIJxPool instance is shutting down!");
+        }
+        return pool;
     }
 
     private static CLIJxPool createDefaultPool() {
         int[] devices = CLIJPoolOptions.getDevices();
         int[] threads = CLIJPoolOptions.getThreads();
-        return new CLIJxPool(devices, threads);
+        return new CLIJxPool(devices, threads, CLIJPoolOptions.getStartup());
     }
 
     /**
@@ -100,52 +195,65 @@ public class CLIJxPool {
     }
 
     /**
-     * @return total number of CLIJx instances (busy or not) contained in the pool, identical to {@link CLIJxPool#nInstances()}
+     * Creates a new CLIJx instance on a device and adds it to the pool, where it is immediately available
+     * @param deviceIndex index of the device
+     * @return the new instance, or null if the device was drained while the instance was being created
      */
-    public int size() {
-        return nInstances();
+    public CLIJx addCLIJx(int deviceIndex) {
+        return addContext(deviceIndex);
     }
 
     /**
-     * @return total number of CLIJx instances (busy or not) contained in the pool, identical to {@link CLIJxPool#size()}
+     * Same as {@link CLIJxPool#addCLIJx(int)}, the instance is created in a background thread
+     * @param deviceIndex index of the device
+     * @return completed with the new instance, or with null if the device was drained while the instance was being created
      */
-    public int nInstances() {
-        return allInstances.size();
+    public CompletableFuture<CLIJx> addCLIJxAsync(int deviceIndex) {
+        return addContextAsync(deviceIndex);
     }
 
     /**
-     * @return number of busy CLIJx instances contained in the pool
+     * Drains CLIJx instances of a device out of the pool: planned instances (LAZY startup) are not created, idle
+     * instances are closed immediately, instances being created are closed as soon as they are ready, and busy
+     * instances finish their current job and are closed when they are returned with
+     * {@link CLIJxPool#setCLIJxIdle(CLIJx)}. Instances are drained in this order.
+     * @param deviceIndex index of the device
+     * @param n number of instances to drain
+     * @return the number of instances actually drained, which is lower than n if the device has less instances
      */
-    public int nBusyInstances() {
-        return allInstances.size()- idleInstances.size();
+    public int removeCLIJx(int deviceIndex, int n) {
+        return removeContexts(deviceIndex, n);
     }
 
     /**
-     * @return number of idle CLIJx instances contained in the pool
+     * Counts a buffer in the memory used by an instance, see {@link Factory#getUsedMemoryInBytes(Object)}, until it is
+     * closed with {@link CLIJxPool#closeBuffer(CLIJx, ClearCLBuffer)}. The ops of this package count the buffers they
+     * allocate, tasks running directly on pooled instances can count theirs, so that {@link CLIJxPoolAutoscaler}
+     * knows how much memory an instance needs.
+     * @param clijx the instance the buffer was created on
+     * @param buffer the buffer
+     * @return the buffer
      */
-    public int nIdleInstances() {
-        return idleInstances.size();
+    public static ClearCLBuffer trackBuffer(CLIJx clijx, ClearCLBuffer buffer) {
+        ALLOCATED_BYTES.computeIfAbsent(clijx, key -> new AtomicLong()).addAndGet(buffer.getSizeInBytes());
+        return buffer;
     }
 
     /**
-     * @return a String representation of all CLIJx instances of the pool with their identifier and status (idle, busy)
+     * Closes a buffer counted with {@link CLIJxPool#trackBuffer(CLIJx, ClearCLBuffer)}, does nothing if it is null
+     * @param clijx the instance the buffer was created on
+     * @param buffer the buffer
      */
-    public String getDetails() {
-        StringBuilder text = new StringBuilder();
-        text.append("CLIJxPool [")
-                .append("size:").append(this.allInstances.size()).append(" idle:").append(this.idleInstances.size()).append("]:\n");
-        for (CLIJx clijx : allInstances) {
-            text.append(idleInstances.contains(clijx) ? "\t- [IDLE] " : "\t- [BUSY] ").append(clijx.getGPUName()).append(" \n")
-                    .append("\t\t- Img Support [").append(clijx.hasImageSupport()).append("]  OpenCL [v").append(clijx.getOpenCLVersion()).append("]\n")
-                    .append("\t\t- ").append(clijx).append("\n");
-        }
-        if (isShuttingDown) {text.append("SHUTDOWN");}
-        return text.toString();
+    public static void closeBuffer(CLIJx clijx, ClearCLBuffer buffer) {
+        if (buffer == null) return;
+        AtomicLong bytes = ALLOCATED_BYTES.get(clijx);
+        if (bytes != null) bytes.addAndGet(-buffer.getSizeInBytes());
+        buffer.close();
     }
 
     @Override
-    public String toString() {
-        return "CLIJxPool [size:" + this.allInstances.size() + " idle:" + this.idleInstances.size() + "]" + ((isShuttingDown?"SHUTDOWN!":""));
+    protected void appendDetails(StringBuilder text, CLIJx clijx) {
+        text.append("\t\t- Img Support [").append(clijx.hasImageSupport()).append("]  OpenCL [v").append(clijx.getOpenCLVersion()).append("]\n");
     }
 
     /**
@@ -155,75 +263,54 @@ public class CLIJxPool {
      * The returned CLIJx instance should be returned to the pool once its job is done with {@link CLIJxPool#setCLIJxIdle(CLIJx)}
      */
     public CLIJx getIdleCLIJx() {
-        if (isShuttingDown) {
-            throw new RuntimeException("The CLIJxPool is being shut down, can't get any instance!");
-        }
-        try {
-            return idleInstances.take();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+        return acquire();
     }
 
     /**
-     * Put back a CLIJx instance into the queue of idle instances
+     * @param priority requests with a higher priority are served first, requests of identical priority are served
+     *                 in the order they were made
+     * @return an idle CLIJx instance from the pool, immediately if one is available from the pool OR
+     * blocks until one becomes available.
+     * <p>
+     * The returned CLIJx instance should be returned to the pool once its job is done with {@link CLIJxPool#setCLIJxIdle(CLIJx)}
+     */
+    public CLIJx getIdleCLIJx(int priority) {
+        return acquire(priority);
+    }
+
+    /**
+     * Put back a CLIJx instance into the queue of idle instances, or closes it if it is being drained
      * @param clijx the clijx instance to recycle
      */
-    public synchronized void setCLIJxIdle(CLIJx clijx) {
-        if (allInstances.contains(clijx)) {
-            if (idleInstances.contains(clijx)) {
-                System.err.println("CLIJx "+clijx.getGPUName()+", instance "+clijx+" has already been recycled!");
-                return;
-            }
-            idleInstances.add(clijx);
-        } else {
-            System.err.println("CLIJx "+clijx.getGPUName()+", instance "+clijx+" is not part of the pool "+this);
-        }
+    public void setCLIJxIdle(CLIJx clijx) {
+        release(clijx);
     }
 
     /**
-     * Orderly shutdown of the CLIJxPool, closes all CLIJx context until no one is left in the pool
+     * Orderly shutdown of the CLIJxPool, cancels all pending requests and closes all CLIJx context
+     * until no one is left in the pool
      */
+    @Override
     public void shutdown() {
-        synchronized (this) {
-            if (isShuttingDown) return; // It's already shutting down in another thread
-            isShuttingDown = true;
-        }
-
-        int nInstancesLeft = allInstances.size();
-
-        while (nInstancesLeft>0) {
-            try {
-                CLIJx clijx = idleInstances.take();
-                clijx.close();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            nInstancesLeft--;
-        }
-
-        allInstances.clear();
-
-        if ((INSTANCE == this)) { // Avoid static leak, and allow to call back getInstance without error messages if necessary
-            INSTANCE = null;
-        }
+        super.shutdown();
+        clearInstance();
     }
 
     /**
      * Forces shutdown of the CLIJxPool, even if some CLIJx instance are still busy.
      * May be useful, use at your own risk!
      */
+    @Override
     public void forceShutdown() {
-        isShuttingDown = true;
-        idleInstances.clear();
-        allInstances.forEach( clij ->
-            new Thread(clij::close).start()
-        );
-        allInstances.clear();
-
-        if ((INSTANCE == this)) {
-            INSTANCE = null;
-        }
+        super.forceShutdown();
+        clearInstance();
     }
 
+    private void clearInstance() {
+        synchronized (CLIJxPool.class) {
+            if (INSTANCE == this) { // Avoid static leak, and allow to call back getInstance without error messages if necessary
+                INSTANCE = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,160 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically adapts the number of CLIJx instances per device of a {@link CLIJxPool} (or of any {@link ContextPool}) to the load.
+ * <p>
+ * The utilization of each device (busy instances / instances) is sampled and smoothed. When requests are waiting
+ * and a device is mostly busy, an instance is added to it, provided that the device memory can hold one more
+ * instance: the memory used by the instances of the device is given by the factory of the pool (see
+ * {@link ContextPool.Factory#getUsedMemoryInBytes(Object)}), and the largest memory used by a busy instance so far is
+ * taken as the memory a new instance will need. If the factory cannot tell the used memory, no instance is added
+ * beyond the minimum. When a device is mostly idle, one of its instances is drained, which hands GPU capacity back to
+ * other applications. The number of instances per device always stays between a minimum and a maximum.
+ * <p>
+ * Instances are created in the background, so that a slow creation does not delay the next samples. An instance
+ * being created counts as an instance of its device (see {@link ContextPool#nExpectedInstances(int)}).
+ * <p>
+ * Only the devices which are part of the pool when the autoscaler is created are managed.
+ */
+public class CLIJxPoolAutoscaler implements AutoCloseable {
+
+    final private ContextPool<?> pool;
+    final private int[] devices;
+    final private int minInstancesPerDevice;
+    final private int maxInstancesPerDevice;
+    final private Map<Integer, Double> utilization = new HashMap<>(); // Smoothed utilization per device
+    final private Map<Integer, Long> peakMemoryPerInstance = new HashMap<>(); // Largest memory used per busy instance, per device
+
+    private double scaleUpUtilization = 0.9;
+    private double scaleDownUtilization = 0.3;
+    private double smoothing = 0.3; // Weight of the last sample in the smoothed utilization
+    private long memoryPerInstanceInBytes = 1024L * 1024L * 1024L;
+
+    private ScheduledExecutorService executor = null;
+
+    /**
+     * @param pool the pool to scale
+     * @param minInstancesPerDevice minimal number of instances kept on each device, at least 1
+     * @param maxInstancesPerDevice maximal number of instances created on each device
+     */
+    public CLIJxPoolAutoscaler(ContextPool<?> pool, int minInstancesPerDevice, int maxInstancesPerDevice) {
+        this.pool = pool;
+        this.devices = pool.getDeviceIndices();
+        this.minInstancesPerDevice = Math.max(1, minInstancesPerDevice);
+        this.maxInstancesPerDevice = Math.max(this.minInstancesPerDevice, maxInstancesPerDevice);
+    }
+
+    /**
+     * @param scaleUpUtilization an instance is added to a device when its smoothed utilization is above this value
+     *                           and requests are waiting
+     * @param scaleDownUtilization an instance of a device is drained when its smoothed utilization is below this value
+     */
+    public synchronized void setUtilizationThresholds(double scaleUpUtilization, double scaleDownUtilization) {
+        this.scaleUpUtilization = scaleUpUtilization;
+        this.scaleDownUtilization = scaleDownUtilization;
+    }
+
+    /**
+     * @param smoothing weight, between 0 and 1, of the last sample in the smoothed utilization
+     */
+    public synchronized void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * @param memoryPerInstanceInBytes device memory that a single instance is expected to use at most, as long as
+     *                                 the memory used by the instances of a device has not been measured. 1 GB by
+     *                                 default. No instance is added to a device which cannot hold one more instance.
+     */
+    public synchronized void setMemoryPerInstanceInBytes(long memoryPerInstanceInBytes) {
+        this.memoryPerInstanceInBytes = memoryPerInstanceInBytes;
+    }
+
+    /**
+     * Starts sampling the pool periodically
+     * @param period time between two samples
+     * @param unit unit of the period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CLIJxPool autoscaler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::update, period, period, unit);
+    }
+
+    /**
+     * Stops sampling the pool, the instances of the pool are left as they are
+     */
+    @Override
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Samples the pool once and adds or drains at most one instance per device. Called periodically
+     * once {@link CLIJxPoolAutoscaler#start(long, TimeUnit)} has been called.
+     */
+    public synchronized void update() {
+        try {
+            boolean isWaiting = pool.nPendingRequests() > 0;
+            for (int device : devices) {
+                int n = pool.nInstances(device);
+                double sample = n == 0 ? 1 : Math.min(1, (double) pool.nBusyInstances(device) / n);
+                double smoothed = smoothing * sample + (1 - smoothing) * utilization.getOrDefault(device, sample);
+                utilization.put(device, smoothed);
+                long used = pool.getUsedMemoryInBytes(device);
+                int nBusy = pool.nBusyInstances(device);
+                if ((used > 0) && (nBusy > 0)) {
+                    peakMemoryPerInstance.merge(device, used / nBusy, Math::max);
+                }
+
+                int nExpected = pool.nExpectedInstances(device); // Planned instances (LAZY startup) are created on demand by the pool
+                if ((nExpected < minInstancesPerDevice) || ((isWaiting) && (smoothed >= scaleUpUtilization) && (nExpected < maxInstancesPerDevice) && (hasMemoryForOneMore(device, nExpected, used)))) {
+                    pool.addContextAsync(device).whenComplete((context, error) -> {
+                        if (error != null) System.err.println("CLIJxPool autoscaler: could not add an instance to device " + device + ": " + error.getMessage());
+                    });
+                    System.out.println("CLIJxPool autoscaler: adding an instance to device " + device + " (utilization " + smoothed + ")");
+                } else if ((smoothed <= scaleDownUtilization) && (nExpected > minInstancesPerDevice)) {
+                    pool.removeContexts(device, 1);
+                    System.out.println("CLIJxPool autoscaler: drained an instance of device " + device + " (utilization " + smoothed + ")");
+                }
+            }
+        } catch (RuntimeException e) {
+            // The pool may be shut down, the scaler should not die silently in the executor
+            System.err.println("CLIJxPool autoscaler error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param nInstances current number of instances of the device
+     * @param used memory currently used by these instances, -1 if unknown
+     * @return false if the memory of the device or the memory used by its instances is unknown
+     */
+    private boolean hasMemoryForOneMore(int device, int nInstances, long used) {
+        long globalMemory = pool.getGlobalMemoryInBytes(device);
+        if ((globalMemory < 0) || (used < 0)) return false; // Unknown: don't scale up
+        long perInstance = peakMemoryPerInstance.getOrDefault(device, memoryPerInstanceInBytes);
+        // The instances which are idle now may need as much as the busiest one later
+        return Math.max(used, nInstances * perInstance) + perInstance <= globalMemory;
+    }
+
+    /**
+     * @return the smoothed utilization of each managed device, as a String
+     */
+    @Override
+    public synchronized String toString() {
+        return "CLIJxPoolAutoscaler " + utilization;
+    }
+}
@@ -0,0 +1,255 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.parallel.TileProtocol.TileRequest;
+import net.haesleinhuepf.clijx.parallel.TileProtocol.TileResponse;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A cell loader, like {@link CLIJxFilterOp}, which sends the tiles to {@link TileWorker} processes instead of
+ * processing them in the current JVM.
+ * <p>
+ * The padded input of a tile, the processor class and its parameters are sent with {@link TileProtocol}, and the
+ * result is copied into the cell. Each worker is reached through several connections, one tile at a time per connection.
+ * If a worker fails (process crashed, connection lost, no response in time) or reports an error while processing the
+ * tile, for instance because its device ran out of memory, the tile is retried on the connections of the other workers.
+ * A connection which was lost or timed out is re-opened on its next use. The time a worker has to respond grows with the
+ * size of the tile, see {@link #setReadTimeout(long, long)}.
+ *
+ * @param <T> output type
+ * @param <S> source type
+ */
+public class CLIJxRemoteFilterOp<T extends RealType<T> & NativeType<T>, S extends RealType<S>> implements Consumer<RandomAccessibleInterval<T>>, AutoCloseable {
+
+    protected final RandomAccessible<S> source;
+    protected final long[] padding;
+    protected final Class<? extends TileProcessor> klass;
+    protected final Map<String, String> parameters;
+    protected final NativeTypeEnum outputType;
+    protected final boolean bitPacked;
+
+    final private ArrayDeque<Connection> idleConnections = new ArrayDeque<>(); // Guarded by itself
+    final private List<Connection> connections = new ArrayList<>();
+    final private Set<InetSocketAddress> workers;
+    final private AtomicLong requestCounter = new AtomicLong();
+    private volatile long readTimeoutMs = 60000;
+    private volatile long readTimeoutMsPerMegabyte = 1000;
+
+    /**
+     * @param source the image to process
+     * @param workers addresses of the workers, usually on localhost
+     * @param connectionsPerWorker number of tiles processed concurrently by each worker, usually the number of
+     *                             CLIJx instances of the worker pool
+     * @param klass class of the processor, which has to be on the class path of the workers
+     * @param parameters parameters of the processor, see {@link CLIJxFilterOp.Util#newTileProcessor(Class, Map)}, can be null
+     * @param outputType type of the output image
+     * @param bitPacked if true, the result is considered binary and transferred bit-packed, see {@link CLIJxFilterOp}
+     * @param padding padding added around each tile
+     */
+    public CLIJxRemoteFilterOp(
+            final RandomAccessible<S> source,
+            final List<InetSocketAddress> workers,
+            final int connectionsPerWorker,
+            final Class<? extends TileProcessor> klass,
+            final Map<String, String> parameters,
+            final T outputType,
+            final boolean bitPacked,
+            final long... padding) {
+
+        this.source = source;
+        final int n = source.numDimensions();
+        if (n == padding.length)
+            this.padding = padding;
+        else
+            this.padding = Arrays.copyOf(padding, n);
+        this.klass = klass;
+        this.parameters = parameters;
+        this.outputType = CLIJxFilterOp.Util.outputTypeOf(outputType);
+        this.bitPacked = bitPacked;
+        this.workers = new HashSet<>(workers);
+        // Interleaves workers, so that the tiles are spread over all workers
+        for (int i = 0; i < connectionsPerWorker; i++) {
+            for (InetSocketAddress worker : workers) {
+                connections.add(new Connection(worker));
+            }
+        }
+        idleConnections.addAll(connections);
+    }
+
+    /**
+     * @param timeoutMs time a worker has to respond to a request, beyond the transfer time of the tile, 60 s by default
+     * @param timeoutMsPerMegabyte time added per megabyte of the padded input tile, 1 s by default
+     */
+    public void setReadTimeout(final long timeoutMs, final long timeoutMsPerMegabyte) {
+        this.readTimeoutMs = timeoutMs;
+        this.readTimeoutMsPerMegabyte = timeoutMsPerMegabyte;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Override
+    public void accept(final RandomAccessibleInterval<T> cell) {
+        final Interval paddedInterval = Intervals.expand(cell, padding);
+        final TileRequest request = new TileRequest();
+        request.id = requestCounter.incrementAndGet();
+        request.processorClass = klass.getName();
+        if (parameters != null) request.parameters.putAll(parameters);
+        request.dimensions = Intervals.dimensionsAsLongArray(paddedInterval);
+        request.inputType = CLIJxFilterOp.Util.nativeTypeOf(Views.interval(source, paddedInterval).getType());
+        request.input = TileProtocol.toBytes(CLIJxFilterOp.Util.toArrayImg(Views.zeroMin(Views.interval(source, paddedInterval)), request.inputType));
+        request.outputType = outputType;
+        request.bitPacked = bitPacked;
+
+        final TileResponse response = call(request);
+        if (response.error != null) {
+            throw new RuntimeException("Tile " + Arrays.toString(Intervals.minAsLongArray(cell)) + " failed on all workers, last error: " + response.error);
+        }
+        final RandomAccessibleInterval target = Views.translate(Views.zeroMin(cell), padding);
+        if (response.bitPacked) {
+            CLIJxFilterOp.Util.unpackBits(response.data, response.dimensions, target);
+        } else {
+            CLIJxFilterOp.Util.copyReal((RandomAccessibleInterval) TileProtocol.toImg(response.data, response.type, response.dimensions), target);
+        }
+    }
+
+    /**
+     * Sends a request to the next available connection, trying each worker at most once
+     * @return the response of the first worker which processed the tile, or the last error response if all workers
+     * which could be reached reported an error
+     */
+    private TileResponse call(final TileRequest request) {
+        final long timeoutMs = readTimeoutMs + readTimeoutMsPerMegabyte * request.input.length / (1024 * 1024);
+        final Set<InetSocketAddress> failedWorkers = new HashSet<>();
+        IOException lastError = null;
+        TileResponse lastErrorResponse = null;
+        while (failedWorkers.size() < workers.size()) {
+            final Connection connection = takeConnection(failedWorkers); // Never a connection to a worker which failed
+            try {
+                final TileResponse response = connection.call(request, timeoutMs);
+                if (response.error == null) return response;
+                System.err.println("CLIJxRemoteFilterOp: worker " + connection.address + " could not process the tile: " + response.error);
+                failedWorkers.add(connection.address);
+                lastErrorResponse = response;
+            } catch (SocketTimeoutException e) {
+                System.err.println("CLIJxRemoteFilterOp: worker " + connection.address + " did not respond within " + timeoutMs + " ms");
+                connection.close(); // The response may still come: the connection can't be reused
+                failedWorkers.add(connection.address);
+                lastError = e;
+            } catch (IOException e) {
+                System.err.println("CLIJxRemoteFilterOp: worker " + connection.address + " failed: " + e.getMessage());
+                connection.close(); // Re-opened on its next use
+                failedWorkers.add(connection.address);
+                lastError = e;
+            } finally {
+                giveBack(connection);
+            }
+        }
+        if (lastErrorResponse != null) return lastErrorResponse;
+        throw new RuntimeException("No worker could process the tile", lastError);
+    }
+
+    /**
+     * Waits for an idle connection to a worker which is not excluded, the first one in the order of the connections
+     */
+    private Connection takeConnection(final Set<InetSocketAddress> excludedWorkers) {
+        synchronized (idleConnections) {
+            while (true) {
+                for (Iterator<Connection> iterator = idleConnections.iterator(); iterator.hasNext(); ) {
+                    final Connection connection = iterator.next();
+                    if (!excludedWorkers.contains(connection.address)) {
+                        iterator.remove();
+                        return connection;
+                    }
+                }
+                try {
+                    idleConnections.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    private void giveBack(final Connection connection) {
+        synchronized (idleConnections) {
+            idleConnections.add(connection);
+            idleConnections.notifyAll();
+        }
+    }
+
+    /**
+     * Closes all connections, the workers keep running
+     */
+    @Override
+    public void close() {
+        connections.forEach(Connection::close);
+    }
+
+    private static class Connection {
+
+        final InetSocketAddress address;
+        private Socket socket = null;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Connection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * @throws SocketTimeoutException if the worker does not respond within the timeout
+         */
+        TileResponse call(TileRequest request, long timeoutMs) throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(address, 10000);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1, timeoutMs)));
+            TileProtocol.write(out, request);
+            TileResponse response = TileProtocol.readResponse(in);
+            if (response.id != request.id) {
+                throw new IOException("Unexpected response " + response.id + " to request " + request.id);
+            }
+            return response;
+        }
+
+        void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing to do, the connection is dropped anyway
+                }
+                socket = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.converters.implementations.ClearCLBufferToRandomAccessibleIntervalConverter;
+import net.haesleinhuepf.clij.converters.implementations.RandomAccessibleIntervalToClearCLBufferConverter;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleBiFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Runs a {@link TileProcessor} with several parameter sets on each tile, the padded tile being uploaded to the GPU
+ * only once for all of them. Parameter sets are given as in {@link CLIJxFilterOp.Util#newTileProcessor(Class, Map)}.
+ * <p>
+ * As a cell loader, the op generates an image with one more dimension than the source: the last dimension is
+ * the index of the parameter set. Cells spanning several parameter sets along that dimension are computed from
+ * a single upload, so that the cell size along the last dimension is typically the number of parameter sets.
+ * <p>
+ * If only a figure of merit per parameter set is needed, {@link #score(Interval, int[], ToDoubleBiFunction)}
+ * evaluates it on the GPU, and only one number per tile and parameter set is transferred back.
+ * <p>
+ * Like CLIJ buffers, the source has 2 or 3 dimensions.
+ *
+ * @param <T> output type
+ * @param <S> source type
+ */
+public class CLIJxSweepOp<T extends RealType<T> & NativeType<T>, S extends RealType<S>> implements Consumer<RandomAccessibleInterval<T>> {
+
+    protected final RandomAccessible<S> source;
+    protected final long[] padding;
+    protected final CLIJxPool clijxPool;
+    protected final Class<? extends TileProcessor> klass;
+    protected final List<Map<String, String>> parameterSets;
+    protected final NativeTypeEnum outputType; // null: same type as the input tile
+    protected ToIntFunction<Interval> priority = cell -> CLIJxPool.DEFAULT_PRIORITY;
+    protected Predicate<Interval> isNeeded = null;
+    protected int maxAttempts = 2;
+
+    /**
+     * @param source the image to process
+     * @param clijxPool pool processing the tiles
+     * @param klass class of the processor
+     * @param parameterSets parameters of the processor, one map per run
+     * @param outputType type of the output image, the processor writes its result in a GPU buffer of this type,
+     *                   null for the type of the source
+     * @param padding padding added around each tile
+     * @throws IllegalArgumentException if the source does not have 2 or 3 dimensions
+     */
+    public CLIJxSweepOp(
+            final RandomAccessible<S> source,
+            final CLIJxPool clijxPool,
+            final Class<? extends TileProcessor> klass,
+            final List<Map<String, String>> parameterSets,
+            final T outputType,
+            final long... padding) {
+
+        this.source = source;
+        final int n = source.numDimensions();
+        if ((n != 2) && (n != 3)) {
+            throw new IllegalArgumentException("Only 2D and 3D sources can be processed, the source has " + n + " dimensions");
+        }
+        if (n == padding.length)
+            this.padding = padding;
+        else
+            this.padding = Arrays.copyOf(padding, n);
+        this.clijxPool = clijxPool;
+        this.klass = klass;
+        this.parameterSets = Collections.unmodifiableList(new ArrayList<>(parameterSets));
+        this.outputType = outputType == null ? null : CLIJxFilterOp.Util.outputTypeOf(outputType);
+    }
+
+    /**
+     * @param priority computes the priority of the request made to the pool for a cell, see
+     *                 {@link CLIJxFilterOp#setPriority(ToIntFunction)}
+     */
+    public void setPriority(final ToIntFunction<Interval> priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @param isNeeded evaluated right before a CLIJx instance is handed to the request of a cell, see
+     *                 {@link CLIJxFilterOp#setIsNeeded(Predicate)}. Can be null (the default) if all cells are needed.
+     */
+    public void setIsNeeded(final Predicate<Interval> isNeeded) {
+        this.isNeeded = isNeeded;
+    }
+
+    /**
+     * @param maxAttempts number of times a tile is processed at most, see {@link CLIJxFilterOp#setMaxAttempts(int)}.
+     *                    2 by default.
+     */
+    public void setMaxAttempts(final int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * @return the number of parameter sets, which is the size of the last dimension of the generated image
+     */
+    public int numParameterSets() {
+        return parameterSets.size();
+    }
+
+    /**
+     * @param interval interval of the source to process
+     * @return the interval of the generated image: the source interval and the parameter set index
+     */
+    public Interval outputInterval(final Interval interval) {
+        final int n = interval.numDimensions();
+        final long[] min = Arrays.copyOf(Intervals.minAsLongArray(interval), n + 1);
+        final long[] max = Arrays.copyOf(Intervals.maxAsLongArray(interval), n + 1);
+        max[n] = parameterSets.size() - 1;
+        return new FinalInterval(min, max);
+    }
+
+    /**
+     * Computes the parameter sets of a cell, the last dimension of the cell being the parameter set index. Like
+     * {@link CLIJxFilterOp}, a tile failing on the GPU is retried, on another GPU if one is idle.
+     * @param cell cell with one more dimension than the source
+     * @throws java.util.concurrent.CancellationException if the cell is not needed anymore, see {@link #setIsNeeded(Predicate)}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Override
+    public void accept(final RandomAccessibleInterval<T> cell) {
+        final int n = source.numDimensions();
+        final Interval tile = tileOf(cell);
+        final int first = (int) cell.min(n);
+        final int last = (int) cell.max(n);
+
+        final Predicate<Interval> isNeeded = this.isNeeded;
+        if ((isNeeded != null) && !isNeeded.test(cell)) {
+            throw new CancellationException("Cell " + Intervals.toString(cell) + " is not needed anymore");
+        }
+        // create the processors before holding a GPU, invalid parameters are not a failure of the GPU
+        final List<TileProcessor> processors = processors(first, last);
+
+        final int priority = this.priority.applyAsInt(cell);
+        final BooleanSupplier isCellNeeded = isNeeded == null ? null : () -> isNeeded.test(cell);
+        final List<RandomAccessibleInterval<T>> results = clijxPool.runWithRetry(priority, isCellNeeded, maxAttempts, clijx -> {
+            final List<RandomAccessibleInterval<T>> pulled = new ArrayList<>();
+            ClearCLBuffer input = null;
+            ClearCLBuffer output = null;
+            try {
+                input = push(clijx, tile);
+                output = CLIJxPool.trackBuffer(clijx, outputType == null ? clijx.create(input) : clijx.create(input.getDimensions(), outputType));
+                final ClearCLBufferToRandomAccessibleIntervalConverter cl2rai = new ClearCLBufferToRandomAccessibleIntervalConverter();
+                cl2rai.setCLIJ(clijx.getCLIJ());
+                for (TileProcessor processor : processors) {
+                    process(clijx, processor, input, output);
+                    pulled.add(cl2rai.convert(output));
+                }
+                return pulled;
+            } finally {
+                CLIJxPool.closeBuffer(clijx, input);
+                CLIJxPool.closeBuffer(clijx, output);
+            }
+        });
+
+        for (int i = first; i <= last; i++) {
+            CLIJxFilterOp.Util.copyReal(
+                    (RandomAccessibleInterval) results.get(i - first),
+                    Views.translate(Views.zeroMin(Views.hyperSlice(cell, n, i)), padding));
+        }
+    }
+
+    /**
+     * Scores each parameter set on a tile
+     * @param tile tile of the source, without padding
+     * @param score computes a figure of merit on the GPU, from the result of the processor cropped to the tile
+     * @return the score of each parameter set
+     */
+    public double[] score(final Interval tile, final ToDoubleBiFunction<CLIJx, ClearCLBuffer> score) {
+        final List<TileProcessor> processors = processors(0, parameterSets.size() - 1);
+        return clijxPool.runWithRetry(CLIJxPool.DEFAULT_PRIORITY, null, maxAttempts, clijx -> score(clijx, tile, processors, score));
+    }
+
+    private double[] score(final CLIJx clijx, final Interval tile, final List<TileProcessor> processors, final ToDoubleBiFunction<CLIJx, ClearCLBuffer> score) {
+        final double[] scores = new double[processors.size()];
+        ClearCLBuffer input = null;
+        ClearCLBuffer output = null;
+        ClearCLBuffer cropped = null;
+        try {
+            input = push(clijx, tile);
+            output = CLIJxPool.trackBuffer(clijx, outputType == null ? clijx.create(input) : clijx.create(input.getDimensions(), outputType));
+            if (Arrays.stream(padding).anyMatch(p -> p != 0)) {
+                cropped = CLIJxPool.trackBuffer(clijx, clijx.create(Intervals.dimensionsAsLongArray(tile), output.getNativeType()));
+            }
+            for (int i = 0; i < scores.length; i++) {
+                process(clijx, processors.get(i), input, output);
+                if (cropped == null) {
+                    scores[i] = score.applyAsDouble(clijx, output);
+                } else {
+                    if (padding.length == 2) clijx.crop(output, cropped, padding[0], padding[1]);
+                    else clijx.crop(output, cropped, padding[0], padding[1], padding[2]);
+                    scores[i] = score.applyAsDouble(clijx, cropped);
+                }
+            }
+        } finally {
+            CLIJxPool.closeBuffer(clijx, input);
+            CLIJxPool.closeBuffer(clijx, output);
+            CLIJxPool.closeBuffer(clijx, cropped);
+        }
+        return scores;
+    }
+
+    /**
+     * Scores each parameter set on an interval of the source, processed tile by tile in parallel. The tiles are
+     * submitted to the pool, which runs each of them as soon as a CLIJx instance is idle: no thread is blocked
+     * waiting for an instance, except the calling thread, which waits for the scores.
+     * @param interval interval of the source
+     * @param tileSize size of the tiles, without padding
+     * @param score computes a figure of merit on the GPU, from the result of the processor cropped to a tile
+     * @return the score of each parameter set, summed over all tiles
+     */
+    public double[] score(final Interval interval, final int[] tileSize, final ToDoubleBiFunction<CLIJx, ClearCLBuffer> score) {
+        final CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(interval), tileSize);
+        final int n = grid.numDimensions();
+        final long nTiles = Intervals.numElements(grid.getGridDimensions());
+        final List<CompletableFuture<double[]>> tiles = new ArrayList<>();
+        for (long index = 0; index < nTiles; index++) {
+            final long[] position = new long[n];
+            final long[] min = new long[n];
+            final int[] dimensions = new int[n];
+            grid.getCellGridPositionFlat(index, position);
+            grid.getCellDimensions(position, min, dimensions);
+            final long[] max = new long[n];
+            for (int d = 0; d < n; d++) {
+                min[d] += interval.min(d);
+                max[d] = min[d] + dimensions[d] - 1;
+            }
+            final Interval tile = new FinalInterval(min, max);
+            final List<TileProcessor> processors = processors(0, parameterSets.size() - 1); // one set per tile, tiles run concurrently
+            tiles.add(clijxPool.submit(CLIJxPool.DEFAULT_PRIORITY, clijx -> score(clijx, tile, processors, score)));
+        }
+
+        final double[] sum = new double[parameterSets.size()];
+        try {
+            for (CompletableFuture<double[]> tile : tiles) {
+                final double[] scores = tile.get();
+                for (int i = 0; i < sum.length; i++) sum[i] += scores[i];
+            }
+        } catch (InterruptedException e) {
+            tiles.forEach(tile -> tile.cancel(false));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            tiles.forEach(tile -> tile.cancel(false));
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        return sum;
+    }
+
+    /**
+     * @return a processor per parameter set, from first to last
+     */
+    private List<TileProcessor> processors(final int first, final int last) {
+        final List<TileProcessor> processors = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            processors.add(CLIJxFilterOp.Util.newTileProcessor(klass, parameterSets.get(i)));
+        }
+        return processors;
+    }
+
+    private static void process(final CLIJx clijx, final TileProcessor processor, final ClearCLBuffer input, final ClearCLBuffer output) {
+        processor.setCLIJx(clijx);
+        processor.accept(input, output);
+    }
+
+    private ClearCLBuffer push(final CLIJx clijx, final Interval tile) {
+        final RandomAccessibleIntervalToClearCLBufferConverter rai2cl = new RandomAccessibleIntervalToClearCLBufferConverter();
+        rai2cl.setCLIJ(clijx.getCLIJ());
+        return CLIJxPool.trackBuffer(clijx, rai2cl.convert(Views.interval(source, Intervals.expand(tile, padding))));
+    }
+
+    private Interval tileOf(final Interval cell) {
+        final int n = source.numDimensions();
+        return new FinalInterval(
+                Arrays.copyOf(Intervals.minAsLongArray(cell), n),
+                Arrays.copyOf(Intervals.maxAsLongArray(cell), n));
+    }
+}
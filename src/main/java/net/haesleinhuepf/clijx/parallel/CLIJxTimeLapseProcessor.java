@@ -0,0 +1,212 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Processes a time-lapse frame by frame with a {@link TileProcessor}, streaming the frames through a {@link CLIJxPool}.
+ * <p>
+ * Frames are read (copied from the source, which loads and decodes them if the source is lazy) by the calling
+ * thread, while the frames read before are processed: reading frame t+1 overlaps processing frame t. At most
+ * {@link #setMaxFramesInFlight(int)} frames are read and not yet written, which bounds the memory used.
+ * Results are handed to a writer as soon as a frame is finished.
+ * <p>
+ * A frame is either processed as a single tile, several frames being processed at a time on different CLIJx
+ * instances, or split in tiles processed on all instances. By default the frame-level parallelism is used when
+ * enough frames are in flight to keep all instances of the pool busy, the tile-level one otherwise.
+ *
+ * @param <T> output type
+ * @param <S> source type
+ */
+public class CLIJxTimeLapseProcessor<T extends RealType<T> & NativeType<T>, S extends RealType<S>> {
+
+    public enum Parallelism {
+        FRAME, // a frame is a single tile, frames are processed in parallel
+        TILE, // frames are split in tiles, tiles are processed in parallel
+        AUTO // FRAME if enough frames are in flight to use all instances of the pool while the next frame is read, TILE otherwise
+    }
+
+    final private CLIJxPool pool;
+    final private Class<? extends TileProcessor> klass;
+    final private T outputType;
+    final private long[] padding;
+    final private Map<String, String> parameters = new HashMap<>();
+
+    private int maxFramesInFlight = 2;
+    private Parallelism parallelism = Parallelism.AUTO;
+    private int[] tileSize = null;
+
+    /**
+     * @param pool pool processing the frames
+     * @param klass class of the processor
+     * @param outputType type of the output frames
+     * @param padding padding added around each tile
+     */
+    public CLIJxTimeLapseProcessor(CLIJxPool pool, Class<? extends TileProcessor> klass, T outputType, long... padding) {
+        this.pool = pool;
+        this.klass = klass;
+        this.outputType = outputType;
+        this.padding = padding;
+    }
+
+    /**
+     * @param maxFramesInFlight number of frames read and not yet written at most, at least 2 for reading the next
+     *                          frame while the current one is processed
+     */
+    public void setMaxFramesInFlight(int maxFramesInFlight) {
+        this.maxFramesInFlight = Math.max(1, maxFramesInFlight);
+    }
+
+    public void setParallelism(Parallelism parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param tileSize size of the tiles a frame is split in with the tile-level parallelism, null (the default) to
+     *                 split frames in slabs along their last dimension, as many as needed to use all instances of the pool
+     */
+    public void setTileSize(int... tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @param name name of a parameter of the processor, see {@link CLIJxFilterOp#setParameter(String, String)}
+     * @param value value of the parameter
+     */
+    public void setParameter(String name, String value) {
+        parameters.put(name, value);
+    }
+
+    /**
+     * @return the parallelism used for the next call to process
+     */
+    public Parallelism getEffectiveParallelism() {
+        if (parallelism != Parallelism.AUTO) return parallelism;
+        // one of the frames in flight is being read, the other ones are processed
+        return maxFramesInFlight - 1 >= pool.size() ? Parallelism.FRAME : Parallelism.TILE;
+    }
+
+    /**
+     * Processes all frames, and returns when all of them are written
+     * @param timeLapse the time-lapse, each frame being 2D or 3D
+     * @param timeAxis dimension of the time axis
+     * @param writer called with the time point and the result of each frame, as soon as the frame is processed,
+     *               from a single thread (so that calls never overlap) and not necessarily in the order of time
+     * @throws IllegalArgumentException if the frames have more than 3 dimensions
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void process(RandomAccessibleInterval<S> timeLapse, int timeAxis, BiConsumer<Long, RandomAccessibleInterval<T>> writer) {
+        final int frameDimensions = timeLapse.numDimensions() - 1;
+        if (frameDimensions > 3) {
+            throw new IllegalArgumentException("Only 2D and 3D frames can be processed, the frames have " + frameDimensions + " dimensions");
+        }
+        final Parallelism parallelism = getEffectiveParallelism();
+        final Semaphore inFlight = new Semaphore(maxFramesInFlight);
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, pool.size()), runnable -> {
+            Thread thread = new Thread(runnable, "CLIJx time-lapse worker " + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final ExecutorService writerThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CLIJx time-lapse writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final List<CompletableFuture<Void>> frames = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>(); // first frame failing, set by its callback
+        try {
+            for (long t = timeLapse.min(timeAxis); t <= timeLapse.max(timeAxis); t++) {
+                inFlight.acquire();
+                if (failure.get() != null) {
+                    break; // Stop reading, the error is thrown below
+                }
+
+                // read the frame while the previous ones are processed
+                final RandomAccessibleInterval<? extends RealType<?>> source = (RandomAccessibleInterval) Views.hyperSlice(timeLapse, timeAxis, t);
+                final ArrayImg frame = CLIJxFilterOp.Util.toArrayImg(source, CLIJxFilterOp.Util.nativeTypeOf(Views.flatIterable(source).firstElement()));
+
+                final long time = t;
+                final ArrayImg<T, ?> output = new ArrayImgFactory<>(outputType).create(Intervals.dimensionsAsLongArray(frame));
+                frames.add(processFrame(frame, output, parallelism, workers)
+                        .thenAcceptAsync(v -> writer.accept(time, output), writerThread)
+                        .whenComplete((v, e) -> {
+                            if (e != null) failure.compareAndSet(null, e);
+                            inFlight.release();
+                        }));
+            }
+            CompletableFuture.allOf(frames.toArray(new CompletableFuture<?>[0])).join();
+        } catch (InterruptedException e) {
+            frames.forEach(frame -> frame.cancel(false));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (CompletionException e) {
+            Throwable cause = failure.get() != null ? failure.get() : e;
+            if (cause instanceof CompletionException) cause = cause.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } finally {
+            workers.shutdown();
+            writerThread.shutdown();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private CompletableFuture<Void> processFrame(ArrayImg frame, ArrayImg<T, ?> output, Parallelism parallelism, ExecutorService workers) {
+        final CLIJxFilterOp<T, ?> op = new CLIJxFilterOp(Views.extendMirrorSingle(frame), pool, klass, outputType, padding);
+        parameters.forEach(op::setParameter);
+
+        if (parallelism == Parallelism.FRAME) {
+            return CompletableFuture.runAsync(() -> op.accept(output), workers);
+        }
+
+        final int n = output.numDimensions();
+        final int[] tileSize;
+        if (this.tileSize != null) {
+            tileSize = this.tileSize;
+        } else {
+            // slabs along the last dimension, for the frames in flight to be split in at least as many tiles as instances
+            tileSize = Intervals.dimensionsAsIntArray(output);
+            final int nSlabs = (pool.size() + maxFramesInFlight - 1) / maxFramesInFlight;
+            tileSize[n - 1] = (int) Math.max(1, (output.dimension(n - 1) + nSlabs - 1) / nSlabs);
+        }
+
+        final CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(output), tileSize);
+        final long nTiles = Intervals.numElements(grid.getGridDimensions());
+        final List<CompletableFuture<Void>> tiles = new ArrayList<>();
+        for (long index = 0; index < nTiles; index++) {
+            final long[] position = new long[n];
+            final long[] min = new long[n];
+            final int[] dimensions = new int[n];
+            final long[] max = new long[n];
+            grid.getCellGridPositionFlat(index, position);
+            grid.getCellDimensions(position, min, dimensions);
+            for (int d = 0; d < n; d++) {
+                max[d] = min[d] + dimensions[d] - 1;
+            }
+            final RandomAccessibleInterval<T> tile = Views.interval(output, new FinalInterval(min, max));
+            tiles.add(CompletableFuture.runAsync(() -> op.accept(tile), workers));
+        }
+        return CompletableFuture.allOf(tiles.toArray(new CompletableFuture[0]));
+    }
+}
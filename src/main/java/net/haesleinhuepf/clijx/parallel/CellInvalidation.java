@@ -0,0 +1,179 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.cache.Invalidate;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.Intervals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks which cells of a lazily computed image, typically generated by a {@link CLIJxFilterOp}, depend on which
+ * region of its source, so that only the affected cells are removed from the cell cache when the source or a
+ * parameter changes. The other cells are kept, and removed cells are recomputed the next time they are accessed.
+ * <p>
+ * Images computed from other lazily computed images are chained with {@link #then(CellInvalidation)}: a change
+ * propagates downstream, to the cells whose padded input intersects the cells invalidated upstream.
+ * <p>
+ * Regions are given in the coordinates of the image, whose min is given to the constructor if it is not 0 (for
+ * instance when the cached image is translated to the interval of its source).
+ * <p>
+ * A cell which is being computed when it is invalidated is still cached once computed. {@link CLIJxFilterOp}
+ * computes a cell again if its parameters changed meanwhile, which leaves a short window between this check and
+ * the insertion into the cache. A cell reading a region of the source while it is being changed can be cached
+ * with the old content: call {@link #sourceChanged(Interval)} once the change is complete.
+ * <pre>
+ * CachedCellImg&lt;FloatType, ?&gt; filtered = Lazy.generate(..., clijxFilter);
+ * CellInvalidation invalidation = new CellInvalidation(filtered.getCellGrid(), filtered.getCache(), clijxFilter);
+ * ...
+ * invalidation.sourceChanged(editedRegion); // recomputes the cells around the edited region only
+ * invalidation.setParameter("sigma", "3");  // recomputes all cells, and the cells of the downstream images
+ * </pre>
+ */
+public class CellInvalidation {
+
+    final private CellGrid grid;
+    final private long[] min;
+    final private Invalidate<Long> cache;
+    final private long[] padding;
+    final private CLIJxFilterOp<?, ?> op;
+    final private List<CellInvalidation> downstream = new CopyOnWriteArrayList<>();
+    final private AtomicLong nInvalidatedCells = new AtomicLong();
+
+    /**
+     * @param grid cell grid of the image
+     * @param cache cell cache of the image, keyed by flat cell index as in {@link net.imglib2.cache.img.CachedCellImg}
+     * @param padding padding added around each cell to read the source
+     */
+    public CellInvalidation(final CellGrid grid, final Invalidate<Long> cache, final long... padding) {
+        this(new long[grid.numDimensions()], grid, cache, null, padding);
+    }
+
+    /**
+     * @param min min of the image, the regions given to {@link #sourceChanged(Interval)} are relative to it
+     * @param grid cell grid of the image
+     * @param cache cell cache of the image, keyed by flat cell index as in {@link net.imglib2.cache.img.CachedCellImg}
+     * @param padding padding added around each cell to read the source
+     */
+    public CellInvalidation(final long[] min, final CellGrid grid, final Invalidate<Long> cache, final long... padding) {
+        this(min, grid, cache, null, padding);
+    }
+
+    /**
+     * @param grid cell grid of the image
+     * @param cache cell cache of the image, keyed by flat cell index as in {@link net.imglib2.cache.img.CachedCellImg}
+     * @param op the op generating the cells, whose parameters can then be changed with {@link #setParameter(String, String)}
+     */
+    public CellInvalidation(final CellGrid grid, final Invalidate<Long> cache, final CLIJxFilterOp<?, ?> op) {
+        this(new long[grid.numDimensions()], grid, cache, op, op.padding);
+    }
+
+    /**
+     * @param min min of the image, the regions given to {@link #sourceChanged(Interval)} are relative to it
+     * @param grid cell grid of the image
+     * @param cache cell cache of the image, keyed by flat cell index as in {@link net.imglib2.cache.img.CachedCellImg}
+     * @param op the op generating the cells, whose parameters can then be changed with {@link #setParameter(String, String)}
+     */
+    public CellInvalidation(final long[] min, final CellGrid grid, final Invalidate<Long> cache, final CLIJxFilterOp<?, ?> op) {
+        this(min, grid, cache, op, op.padding);
+    }
+
+    private CellInvalidation(final long[] min, final CellGrid grid, final Invalidate<Long> cache, final CLIJxFilterOp<?, ?> op, final long[] padding) {
+        if (min.length != grid.numDimensions()) {
+            throw new IllegalArgumentException("The min " + Arrays.toString(min) + " does not match the cell grid " + grid);
+        }
+        this.min = min.clone();
+        this.grid = grid;
+        this.cache = cache;
+        this.op = op;
+        this.padding = padding.length == grid.numDimensions() ? padding : Arrays.copyOf(padding, grid.numDimensions());
+    }
+
+    /**
+     * Registers an image computed from this one
+     * @param downstream invalidation of the image computed from this one
+     * @return downstream, to chain calls
+     */
+    public CellInvalidation then(final CellInvalidation downstream) {
+        this.downstream.add(downstream);
+        return downstream;
+    }
+
+    /**
+     * Invalidates the cells whose padded input intersects a changed region of the source, and the cells of the
+     * downstream images depending on them
+     * @param region changed region, in source coordinates
+     */
+    public void sourceChanged(final Interval region) {
+        final int n = grid.numDimensions();
+        final long[] minCell = new long[n];
+        final long[] maxCell = new long[n];
+        for (int d = 0; d < n; d++) {
+            final long min = Math.max(0, region.min(d) - this.min[d] - padding[d]);
+            final long max = Math.min(grid.imgDimension(d) - 1, region.max(d) - this.min[d] + padding[d]);
+            if (min > max) return; // The change does not affect this image
+            minCell[d] = min / grid.cellDimension(d);
+            maxCell[d] = max / grid.cellDimension(d);
+        }
+
+        final LocalizingIntervalIterator cells = new LocalizingIntervalIterator(minCell, maxCell);
+        final long[] cellPosition = new long[n];
+        while (cells.hasNext()) {
+            cells.fwd();
+            cells.localize(cellPosition);
+            cache.invalidate(grid.getCellGridIndexFlat(cellPosition));
+            nInvalidatedCells.incrementAndGet();
+        }
+
+        if (downstream.isEmpty()) return;
+        final long[] min = new long[n];
+        final long[] max = new long[n];
+        for (int d = 0; d < n; d++) {
+            min[d] = this.min[d] + minCell[d] * grid.cellDimension(d);
+            max[d] = this.min[d] + Math.min(grid.imgDimension(d), (maxCell[d] + 1) * grid.cellDimension(d)) - 1;
+        }
+        final Interval invalidated = new FinalInterval(min, max);
+        for (CellInvalidation image : downstream) {
+            image.sourceChanged(invalidated);
+        }
+    }
+
+    /**
+     * Invalidates all cells, and the cells of the downstream images
+     */
+    public void invalidateAll() {
+        sourceChanged(Intervals.translate(new FinalInterval(grid.getImgDimensions()), min));
+    }
+
+    /**
+     * Sets a parameter of the op and invalidates all cells, and the cells of the downstream images,
+     * if the value of the parameter changed
+     * @param name name of the parameter, see {@link CLIJxFilterOp#setParameter(String, String)}
+     * @param value value of the parameter
+     */
+    public void setParameter(final String name, final String value) {
+        if (op == null) {
+            throw new IllegalStateException("No op is attached to this invalidation");
+        }
+        if (op.setParameter(name, value)) {
+            invalidateAll();
+        }
+    }
+
+    /**
+     * @return number of cells invalidated so far, recomputed ones included
+     */
+    public long getNumberOfInvalidatedCells() {
+        return nInvalidatedCells.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CellInvalidation " + Arrays.toString(grid.getGridDimensions()) + " cells, " + nInvalidatedCells.get() + " invalidated";
+    }
+}
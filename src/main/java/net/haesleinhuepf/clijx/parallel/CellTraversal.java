@@ -0,0 +1,438 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.util.Intervals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+
+/**
+ * Visits all cells of a {@link CellGrid} in a configurable order, for batch processing of a whole image.
+ * <p>
+ * Cells are handed to the threads in the traversal order (a thread takes the next cell when it is done with its
+ * current one), so that cells processed at about the same time are close to each other. With a space-filling curve
+ * ({@link Order#MORTON}, {@link Order#HILBERT}), neighbouring cells share more of their source blocks than with the
+ * {@link Order#ROW_MAJOR} order, which improves the hit rate of the cache of a lazy source and the reuse of the
+ * overlap between padded tiles.
+ * <p>
+ * A prefetcher can run a given number of cells ahead of the processing threads, to warm the source blocks of the
+ * upcoming cells, see {@link #setPrefetch(int, Consumer)} and {@link #warm(RandomAccessible, long[], int[])}.
+ * <p>
+ * {@link #process(int, Consumer)} returns the throughput and, if a model of the source cache is set with
+ * {@link #setSourceCache(int[], long[], int)}, its hit rate: the padded cells are mapped onto the blocks of the
+ * source and the accesses are replayed on a least recently used cache of the given capacity.
+ */
+public class CellTraversal {
+
+    public enum Order {
+        ROW_MAJOR, // X fastest, then Y, then Z: the image is traversed slab by slab
+        MORTON, // Z-order curve: recursively, the 2^n sub-blocks of a block are traversed one after the other
+        HILBERT // Hilbert curve: consecutive cells are always neighbours in a cubic grid of power of two size
+    }
+
+    /**
+     * Statistics of a traversal, see {@link CellTraversal#process(int, Consumer)}
+     */
+    public static class Stats {
+        Order order;
+        long nCells;
+        long elapsedMs;
+        long nPrefetchedCells;
+        long nBlockAccesses; // 0 if no source cache model is set
+        long nBlockHits;
+
+        public Order getOrder() {
+            return order;
+        }
+
+        public long getNumberOfCells() {
+            return nCells;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        /**
+         * @return number of cells processed per second
+         */
+        public double getThroughput() {
+            return elapsedMs == 0 ? Double.POSITIVE_INFINITY : nCells * 1000.0 / elapsedMs;
+        }
+
+        public long getNumberOfPrefetchedCells() {
+            return nPrefetchedCells;
+        }
+
+        /**
+         * @return ratio of the accesses to source blocks which were already in the modelled cache, NaN if no source
+         * cache model is set
+         */
+        public double getSourceCacheHitRate() {
+            return nBlockAccesses == 0 ? Double.NaN : (double) nBlockHits / nBlockAccesses;
+        }
+
+        @Override
+        public String toString() {
+            String text = order + ": " + nCells + " cells in " + elapsedMs + " ms (" + String.format("%.1f", getThroughput()) + " cells/s)";
+            if (nBlockAccesses > 0) {
+                text += ", modelled source cache hit rate " + String.format("%.1f", 100 * getSourceCacheHitRate()) + "% (" + nBlockHits + "/" + nBlockAccesses + " blocks)";
+            }
+            if (nPrefetchedCells > 0) {
+                text += ", " + nPrefetchedCells + " cells prefetched";
+            }
+            return text;
+        }
+    }
+
+    final private CellGrid grid;
+    final private Order order;
+    final private long[] cellIndices;
+
+    private int lookahead = 0;
+    private Consumer<Interval> prefetch = null;
+    private SourceCache sourceCache = null;
+
+    /**
+     * @param grid the cells to visit
+     * @param order order of the traversal
+     */
+    public CellTraversal(final CellGrid grid, final Order order) {
+        this.grid = grid;
+        this.order = order;
+        this.cellIndices = order(grid, order);
+    }
+
+    /**
+     * @param lookahead number of cells the prefetcher runs ahead of the processing threads, 0 to disable it
+     * @param prefetch called from the prefetcher thread with each upcoming cell, see
+     *                 {@link #warm(RandomAccessible, long[], int[])} and {@link CLIJxFilterOp#stageAhead()}; cells which are already being processed
+     *                 when the prefetcher reaches them are not prefetched
+     */
+    public void setPrefetch(final int lookahead, final Consumer<Interval> prefetch) {
+        this.lookahead = Math.max(0, lookahead);
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Sets a model of the cache of the source, to report its hit rate in the {@link Stats}. The hit rate is computed
+     * from the blocks the padded cells cover, not measured on the actual source.
+     * @param blockSize size of the blocks of the source, in pixels
+     * @param padding padding around each cell, the source is read in the padded cell
+     * @param capacity number of blocks held by the cache
+     */
+    public void setSourceCache(final int[] blockSize, final long[] padding, final int capacity) {
+        this.sourceCache = new SourceCache(blockSize, padding, capacity);
+    }
+
+    /**
+     * @return the flat indices of the cells, in the order of the traversal
+     */
+    public long[] getCellIndices() {
+        return cellIndices.clone();
+    }
+
+    /**
+     * @param index flat index of a cell
+     * @return the interval of the cell
+     */
+    public Interval getCell(final long index) {
+        final int n = grid.numDimensions();
+        final long[] position = new long[n];
+        final long[] min = new long[n];
+        final int[] dimensions = new int[n];
+        final long[] max = new long[n];
+        grid.getCellGridPositionFlat(index, position);
+        grid.getCellDimensions(position, min, dimensions);
+        for (int d = 0; d < n; d++) {
+            max[d] = min[d] + dimensions[d] - 1;
+        }
+        return new FinalInterval(min, max);
+    }
+
+    /**
+     * Processes all cells, and returns when all of them are done
+     * @param nThreads number of threads processing cells
+     * @param task processes a cell, for instance loads it from a lazy image computed by {@link CLIJxFilterOp}
+     * @return the statistics of the traversal
+     */
+    public Stats process(final int nThreads, final Consumer<Interval> task) {
+        final SourceCache sourceCache = this.sourceCache;
+        if (sourceCache != null) sourceCache.clear();
+        final AtomicLong next = new AtomicLong(); // Position of the next cell to process in the traversal
+        final AtomicLong nPrefetched = new AtomicLong();
+        final Object progress = new Object(); // Notified whenever the processing moves on
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final ExecutorService threads = Executors.newFixedThreadPool(Math.max(1, nThreads) + 1, runnable -> {
+            Thread thread = new Thread(runnable, "CLIJx cell traversal " + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Void>> workers = new ArrayList<>();
+        try {
+            for (int t = 0; t < Math.max(1, nThreads); t++) {
+                workers.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        for (long i = next.getAndIncrement(); i < cellIndices.length; i = next.getAndIncrement()) {
+                            synchronized (progress) {
+                                progress.notifyAll();
+                            }
+                            final Interval cell = getCell(cellIndices[(int) i]);
+                            if (sourceCache != null) sourceCache.access(cell, true);
+                            task.accept(cell);
+                        }
+                    } catch (RuntimeException | Error e) {
+                        next.set(cellIndices.length); // Stops the other threads
+                        throw e;
+                    }
+                }, threads));
+            }
+            final Consumer<Interval> prefetch = this.prefetch;
+            if ((lookahead > 0) && (prefetch != null)) {
+                threads.execute(() -> {
+                    for (long i = 0; i < cellIndices.length; i++) {
+                        synchronized (progress) {
+                            while ((i >= next.get() + lookahead) && (next.get() < cellIndices.length)) {
+                                try {
+                                    progress.wait(100);
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                            }
+                        }
+                        if (next.get() >= cellIndices.length) return;
+                        if (i < next.get()) continue; // Already being processed
+                        final Interval cell = getCell(cellIndices[(int) i]);
+                        if (sourceCache != null) sourceCache.access(cell, false);
+                        try {
+                            prefetch.accept(cell);
+                            nPrefetched.incrementAndGet();
+                        } catch (RuntimeException e) {
+                            System.err.println("CellTraversal: could not prefetch cell " + Intervals.toString(cell) + ": " + e.getMessage());
+                        }
+                    }
+                });
+            }
+            CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            next.set(cellIndices.length); // Stops the prefetcher
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+            threads.shutdown();
+        }
+
+        final Stats stats = new Stats();
+        stats.order = order;
+        stats.nCells = cellIndices.length;
+        stats.elapsedMs = (System.nanoTime() - start) / 1000000;
+        stats.nPrefetchedCells = nPrefetched.get();
+        if (sourceCache != null) {
+            synchronized (sourceCache) {
+                stats.nBlockAccesses = sourceCache.nAccesses;
+                stats.nBlockHits = sourceCache.nHits;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Creates a prefetch which reads one pixel per source block in a padded cell, which loads the blocks of a
+     * cached source (a {@link net.imglib2.cache.img.CachedCellImg} for instance) or of the image behind a view
+     * @param source the source, as given to {@link CLIJxFilterOp}
+     * @param padding padding around each cell
+     * @param blockSize size of the blocks of the source
+     * @return the prefetch, see {@link #setPrefetch(int, Consumer)}
+     */
+    public static Consumer<Interval> warm(final RandomAccessible<?> source, final long[] padding, final int[] blockSize) {
+        final long[] margin = Arrays.copyOf(padding, source.numDimensions());
+        return cell -> {
+            final Interval padded = Intervals.expand(cell, margin);
+            final int n = padded.numDimensions();
+            final RandomAccess<?> access = source.randomAccess(padded);
+            final long[] position = Intervals.minAsLongArray(padded);
+            while (true) {
+                access.setPosition(position);
+                access.get();
+                int d = 0;
+                for (; d < n; d++) {
+                    if (position[d] < padded.max(d)) {
+                        position[d] = Math.min(position[d] + blockSize[d], padded.max(d));
+                        break;
+                    }
+                    position[d] = padded.min(d);
+                }
+                if (d == n) return;
+            }
+        };
+    }
+
+    /**
+     * @param grid a cell grid
+     * @param order order of the traversal
+     * @return the flat indices of the cells of the grid, in the order of the traversal
+     */
+    public static long[] order(final CellGrid grid, final Order order) {
+        final int n = grid.numDimensions();
+        final long[] gridDimensions = grid.getGridDimensions();
+        final long nCells = Intervals.numElements(gridDimensions);
+        if (order == Order.ROW_MAJOR) {
+            return LongStream.range(0, nCells).toArray();
+        }
+
+        long max = 1;
+        for (long dimension : gridDimensions) max = Math.max(max, dimension);
+        final int bits = Math.max(1, 64 - Long.numberOfLeadingZeros(max - 1));
+        if (bits * n > 63) {
+            throw new IllegalArgumentException("The grid " + Arrays.toString(gridDimensions) + " is too large for the " + order + " order");
+        }
+
+        final long[][] keys = new long[(int) nCells][];
+        final long[] position = new long[n];
+        for (int i = 0; i < nCells; i++) {
+            grid.getCellGridPositionFlat(i, position);
+            keys[i] = new long[]{order == Order.MORTON ? mortonKey(position, bits) : hilbertKey(position, bits), i};
+        }
+        Arrays.sort(keys, Comparator.comparingLong(key -> key[0]));
+        final long[] indices = new long[(int) nCells];
+        for (int i = 0; i < nCells; i++) indices[i] = keys[i][1];
+        return indices;
+    }
+
+    /**
+     * @return the position along the Z-order curve, interleaving the bits of the coordinates
+     */
+    static long mortonKey(final long[] position, final int bits) {
+        long key = 0;
+        for (int b = bits - 1; b >= 0; b--) {
+            for (int d = position.length - 1; d >= 0; d--) {
+                key = (key << 1) | ((position[d] >>> b) & 1);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * @return the position along the Hilbert curve, see J. Skilling, "Programming the Hilbert curve",
+     * AIP Conference Proceedings 707, 381 (2004)
+     */
+    static long hilbertKey(final long[] position, final int bits) {
+        final int n = position.length;
+        final long[] x = position.clone();
+        final long m = 1L << (bits - 1);
+        // inverse undo
+        for (long q = m; q > 1; q >>= 1) {
+            final long p = q - 1;
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p;
+                } else {
+                    final long t = (x[0] ^ x[i]) & p;
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+        // gray encode
+        for (int i = 1; i < n; i++) x[i] ^= x[i - 1];
+        long t = 0;
+        for (long q = m; q > 1; q >>= 1) {
+            if ((x[n - 1] & q) != 0) t ^= q - 1;
+        }
+        for (int i = 0; i < n; i++) x[i] ^= t;
+        // interleave the transposed coordinates
+        long key = 0;
+        for (int b = bits - 1; b >= 0; b--) {
+            for (int i = 0; i < n; i++) {
+                key = (key << 1) | ((x[i] >>> b) & 1);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Least recently used cache of source blocks, replaying the accesses of the traversal
+     */
+    private class SourceCache {
+        final int[] blockSize;
+        final long[] padding;
+        final int capacity;
+        final Map<List<Long>, Boolean> blocks;
+        long nAccesses = 0;
+        long nHits = 0;
+
+        SourceCache(final int[] blockSize, final long[] padding, final int capacity) {
+            this.blockSize = Arrays.copyOf(blockSize, grid.numDimensions());
+            this.padding = Arrays.copyOf(padding, grid.numDimensions());
+            this.capacity = capacity;
+            this.blocks = new LinkedHashMap<List<Long>, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Long>, Boolean> eldest) {
+                    return size() > SourceCache.this.capacity;
+                }
+            };
+        }
+
+        synchronized void clear() {
+            blocks.clear();
+            nAccesses = 0;
+            nHits = 0;
+        }
+
+        /**
+         * @param cell a cell, read with its padding
+         * @param count true for an access by a processing thread, false for a prefetch which loads the blocks
+         */
+        synchronized void access(final Interval cell, final boolean count) {
+            final int n = cell.numDimensions();
+            final long[] min = new long[n];
+            final long[] max = new long[n];
+            final long[] imgDimensions = grid.getImgDimensions();
+            for (int d = 0; d < n; d++) {
+                // the padding outside of the image reads mirrored pixels, which are inside
+                min[d] = Math.max(0, cell.min(d) - padding[d]) / blockSize[d];
+                max[d] = Math.min(imgDimensions[d] - 1, cell.max(d) + padding[d]) / blockSize[d];
+            }
+            final Long[] block = new Long[n];
+            for (int d = 0; d < n; d++) block[d] = min[d];
+            while (true) {
+                final List<Long> key = Arrays.asList(block.clone());
+                if (count) {
+                    nAccesses++;
+                    if (blocks.get(key) != null) nHits++;
+                }
+                blocks.put(key, Boolean.TRUE);
+                int d = 0;
+                for (; d < n; d++) {
+                    if (block[d] < max[d]) {
+                        block[d]++;
+                        break;
+                    }
+                    block[d] = min[d];
+                }
+                if (d == n) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,1234 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * A pool of contexts spread over several devices, which are lent to callers one at a time. {@link CLIJxPool} is the
+ * pool of CLIJx instances; the contexts themselves are created and closed by a {@link Factory}, so that the same
+ * scheduling can run on simulated devices, for instance to test it without any GPU.
+ * <p>
+ * A context is acquired with {@link ContextPool#acquire(int)} and returned with {@link ContextPool#release(Object)}.
+ * Waiting callers are not served in a strict FIFO order: a request can be issued with a priority through
+ * {@link ContextPool#request(int, BooleanSupplier)}, and the highest priority request is served first when a context
+ * becomes idle. A request which is still waiting can be re-prioritized or cancelled.
+ * <p>
+ * The pool is elastic: contexts can be added with {@link ContextPool#addContext(int)} or drained with
+ * {@link ContextPool#removeContexts(int, int)} while it is running. A busy context which is drained keeps doing its job
+ * and is closed when it is returned to the pool. Contexts which are planned (LAZY startup) or being created count as
+ * contexts of their device, see {@link ContextPool#nExpectedInstances(int)}.
+ * <p>
+ * Besides the blocking methods, contexts can be acquired asynchronously with
+ * {@link ContextPool#acquireAsync(int, long, TimeUnit, Executor)}, or a task can be run on a pooled context which is
+ * always released afterwards with {@link ContextPool#submit(int, Function)}. These methods never block the calling
+ * thread, and the blocking ones only wait on futures, never inside a monitor.
+ * <p>
+ * Contexts are created in parallel. Depending on the {@link Startup} mode, the constructor waits for all of them,
+ * returns as soon as the first one is ready, or creates none of them and lets requests trigger their creation.
+ * <p>
+ * A context which failed during a task is returned with {@link ContextPool#releaseFailed(Object, Throwable)}. After
+ * a number of consecutive failures, it is quarantined: taken out of the pool, closed and, optionally, replaced by a
+ * new context on the same device (see {@link ContextPool#setQuarantine(int, int)}).
+ * {@link ContextPool#runWithRetry(int, BooleanSupplier, int, Function)} does this for a task failing on its device,
+ * see {@link Factory#isDeviceFailure(Throwable)}, and retries it on another device when possible. The failures of each device are reported by {@link ContextPool#getDetails()}.
+ *
+ * @param <C> type of the contexts
+ */
+public class ContextPool<C> {
+
+    /**
+     * Priority used by {@link ContextPool#acquire()}, requests with a higher priority are served first
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    /**
+     * Creates and closes the contexts of a pool
+     * @param <C> type of the contexts
+     */
+    public interface Factory<C> {
+
+        /**
+         * @param deviceIndex index of the device
+         * @return a new context on this device, creating it can be slow
+         */
+        C create(int deviceIndex);
+
+        void close(C context);
+
+        /**
+         * @return the name of the device of a context
+         */
+        String getName(C context);
+
+        /**
+         * @return the global memory of the device of a context in bytes
+         */
+        long getGlobalMemoryInBytes(C context);
+
+        /**
+         * @return the device memory currently allocated by a context in bytes, or -1 if it is unknown (the default)
+         */
+        default long getUsedMemoryInBytes(C context) {
+            return -1;
+        }
+
+        /**
+         * @param error thrown by a task running on a context of this factory
+         * @return true if the error comes from the device, and counts toward quarantining the context. False by
+         * default: errors of the task itself, like a bug of an image processor, say nothing about the device.
+         */
+        default boolean isDeviceFailure(Throwable error) {
+            return false;
+        }
+    }
+
+    /**
+     * How the contexts of a pool are created by its constructor
+     */
+    public enum Startup {
+        /** All contexts are created in parallel, the constructor returns once all of them are ready */
+        EAGER,
+        /** All contexts are created in parallel, the constructor returns as soon as the first one is ready */
+        ASYNC,
+        /** No context is created by the constructor, a context is created whenever a request cannot be served */
+        LAZY
+    }
+
+    /**
+     * Failure counters of a device, see {@link ContextPool#getHealth(int)}
+     */
+    public static class Health {
+        long nSucceeded = 0; // Tasks run by runWithRetry without failure
+        long nFailed = 0; // Failures reported with releaseFailed
+        long nRetried = 0; // Tasks of runWithRetry retried after a failure on this device
+        long nQuarantined = 0; // Contexts taken out of the pool after too many consecutive failures
+        long nReplaced = 0; // Quarantined contexts for which a new context was created
+
+        Health copy() {
+            Health copy = new Health();
+            copy.nSucceeded = nSucceeded;
+            copy.nFailed = nFailed;
+            copy.nRetried = nRetried;
+            copy.nQuarantined = nQuarantined;
+            copy.nReplaced = nReplaced;
+            return copy;
+        }
+
+        public long getNumberOfSucceededTasks() {
+            return nSucceeded;
+        }
+
+        public long getNumberOfFailures() {
+            return nFailed;
+        }
+
+        public long getNumberOfRetries() {
+            return nRetried;
+        }
+
+        public long getNumberOfQuarantinedInstances() {
+            return nQuarantined;
+        }
+
+        public long getNumberOfReplacedInstances() {
+            return nReplaced;
+        }
+
+        @Override
+        public String toString() {
+            return "succeeded:" + nSucceeded + " failed:" + nFailed + " retried:" + nRetried + " quarantined:" + nQuarantined + " replaced:" + nReplaced;
+        }
+    }
+
+    final protected Factory<C> factory;
+    final private String name; // Used in logs
+
+    final private ArrayDeque<C> idleInstances = new ArrayDeque<>(); // The core of the pooling mechanism, guarded by this
+    final private PriorityQueue<Request> pendingRequests = new PriorityQueue<>(); // Callers waiting for an idle instance, guarded by this
+    final private ArrayDeque<Request> offeredRequests = new ArrayDeque<>(); // Requests with an instance reserved, until their isNeeded is checked, guarded by this
+    private long requestCounter = 0; // Keeps FIFO order between requests of identical priority
+    final private List<C> allInstances = new ArrayList<>(); // Stores all instances which are part of this pool
+    final private Map<C, Integer> deviceIndices = new HashMap<>(); // Device index of each instance of the pool
+    final private Set<C> retiringInstances = new HashSet<>(); // Busy instances which are closed as soon as they are returned
+    final private Map<C, Long> startupTimes = new HashMap<>(); // Time, in ms, spent creating each instance
+    final private ArrayDeque<Integer> plannedInstances = new ArrayDeque<>(); // Device indices of instances not created yet (LAZY startup)
+    private int nCreatingInstances = 0; // Instances currently being created, in a background thread or by addContext
+    final private Map<Integer, Integer> creatingInstances = new HashMap<>(); // Same, per device index
+    final private Map<Integer, Integer> cancelledCreations = new HashMap<>(); // Instances being created which are drained as soon as they are ready, per device index
+    final private Map<C, Integer> consecutiveFailures = new HashMap<>(); // Failures of each instance since its last successful use
+    final private Map<C, Integer> totalFailures = new HashMap<>(); // Failures of each instance
+    final private Map<Integer, Health> health = new HashMap<>(); // Failure counters per device, kept when instances are removed
+    private int maxConsecutiveFailures = 3; // Instances failing more often in a row are quarantined
+    private int maxReplacementsPerDevice = 1; // Quarantined instances replaced by a new one, per device
+    private volatile boolean isShuttingDown = false; // Flags whether the pool is currently being shut down (stays true when shutting down is finished)
+
+    /**
+     * @param factory creates and closes the contexts
+     * @param deviceIndices array indicating the device indices
+     * @param numberOfInstancesPerDevice specifies how many contexts are created per device
+     * @param startup specifies when the contexts are created, see {@link Startup}
+     */
+    public ContextPool(Factory<C> factory, int[] deviceIndices, int[] numberOfInstancesPerDevice, Startup startup) {
+        this.factory = factory;
+        this.name = getClass().getSimpleName();
+        synchronized (this) {
+            // Interleaves devices, so that the first instances created cover all devices
+            int max = 0;
+            for (int v : numberOfInstancesPerDevice) {
+                max = Math.max(max, v);
+            }
+            for (int j = 0; j < max; j++) {
+                for (int i = 0; i < deviceIndices.length; i++) {
+                    if (j < numberOfInstancesPerDevice[i]) plannedInstances.add(deviceIndices[i]);
+                }
+            }
+            if (startup != Startup.LAZY) {
+                while (!plannedInstances.isEmpty()) {
+                    createInBackground(plannedInstances.poll());
+                }
+                while ((nCreatingInstances > 0) && ((startup == Startup.EAGER) || (allInstances.isEmpty()))) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an instance in a new thread and adds it to the pool once ready. Must be called while holding the lock of the pool.
+     */
+    private void createInBackground(int deviceIndex) {
+        reserve(deviceIndex);
+        new Thread(() -> {
+            try {
+                createReserved(deviceIndex);
+            } catch (Throwable e) {
+                System.err.println(name + ": could not create an instance on device " + deviceIndex + ": " + e.getMessage());
+            } finally {
+                synchronized (this) {
+                    failIfNoInstanceLeft();
+                    notifyAll();
+                }
+            }
+        }, name + " instance creation").start();
+    }
+
+    /**
+     * Counts an instance which is about to be created on a device, see {@link ContextPool#createReserved(int)}.
+     * Must be called while holding the lock of the pool.
+     */
+    private void reserve(int deviceIndex) {
+        nCreatingInstances++;
+        creatingInstances.merge(deviceIndex, 1, Integer::sum);
+    }
+
+    /**
+     * Must be called while holding the lock of the pool, once for each call of {@link ContextPool#reserve(int)}
+     */
+    private void unreserve(int deviceIndex) {
+        nCreatingInstances--;
+        creatingInstances.merge(deviceIndex, -1, Integer::sum);
+        int nCreating = creatingInstances.get(deviceIndex);
+        if (nCreating <= 0) creatingInstances.remove(deviceIndex);
+        if (cancelledCreations.getOrDefault(deviceIndex, 0) > nCreating) { // The creation failed, nothing left to drain
+            if (nCreating <= 0) cancelledCreations.remove(deviceIndex);
+            else cancelledCreations.put(deviceIndex, nCreating);
+        }
+    }
+
+    /**
+     * @return true once {@link ContextPool#shutdown()} or {@link ContextPool#forceShutdown()} has been called
+     */
+    public boolean isShuttingDown() {
+        return isShuttingDown;
+    }
+
+    /**
+     * @return total number of contexts (busy or not) contained in the pool, identical to {@link ContextPool#nInstances()}
+     */
+    public int size() {
+        return nInstances();
+    }
+
+    /**
+     * @return total number of contexts (busy or not) contained in the pool, identical to {@link ContextPool#size()}
+     */
+    public synchronized int nInstances() {
+        return allInstances.size();
+    }
+
+    /**
+     * @return number of busy contexts contained in the pool
+     */
+    public synchronized int nBusyInstances() {
+        return allInstances.size()- idleInstances.size();
+    }
+
+    /**
+     * @return number of idle contexts contained in the pool
+     */
+    public synchronized int nIdleInstances() {
+        return idleInstances.size();
+    }
+
+    /**
+     * @return number of requests waiting for an idle context
+     */
+    public synchronized int nPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    /**
+     * @return the indices of the devices which have at least one instance in the pool, being created or planned
+     * (LAZY startup), in increasing order
+     */
+    public synchronized int[] getDeviceIndices() {
+        Set<Integer> devices = new TreeSet<>(deviceIndices.values());
+        devices.addAll(creatingInstances.keySet());
+        devices.addAll(plannedInstances);
+        return devices.stream().mapToInt(i -> i).toArray();
+    }
+
+    /**
+     * @param deviceIndex index of a device
+     * @return number of contexts of this device in the pool, not counting the ones being drained
+     */
+    public synchronized int nInstances(int deviceIndex) {
+        int n = 0;
+        for (C context : allInstances) {
+            if ((deviceIndices.get(context) == deviceIndex) && (!retiringInstances.contains(context))) n++;
+        }
+        return n;
+    }
+
+    /**
+     * @param deviceIndex index of a device
+     * @return number of contexts this device will have once the contexts being created and the planned ones
+     * (LAZY startup) exist, not counting the ones being drained. This is the number of contexts which
+     * {@link ContextPool#setNumberOfInstances(int, int)} adjusts.
+     */
+    public synchronized int nExpectedInstances(int deviceIndex) {
+        int n = nInstances(deviceIndex) + creatingInstances.getOrDefault(deviceIndex, 0) - cancelledCreations.getOrDefault(deviceIndex, 0);
+        for (int planned : plannedInstances) {
+            if (planned == deviceIndex) n++;
+        }
+        return n;
+    }
+
+    /**
+     * @param deviceIndex index of a device
+     * @return number of busy contexts of this device, including the ones being drained
+     */
+    public synchronized int nBusyInstances(int deviceIndex) {
+        int n = 0;
+        for (C context : allInstances) {
+            if ((deviceIndices.get(context) == deviceIndex) && (!idleInstances.contains(context))) n++;
+        }
+        return n;
+    }
+
+    /**
+     * @param deviceIndex index of a device
+     * @return the global memory of the device in bytes, or -1 if the pool has no instance on this device
+     */
+    public synchronized long getGlobalMemoryInBytes(int deviceIndex) {
+        for (C context : allInstances) {
+            if (deviceIndices.get(context) == deviceIndex) return factory.getGlobalMemoryInBytes(context);
+        }
+        return -1;
+    }
+
+    /**
+     * @param context a context of the pool
+     * @return the index of its device, or -1 if the context is not part of the pool
+     */
+    public synchronized int getDeviceIndex(C context) {
+        return deviceIndices.getOrDefault(context, -1);
+    }
+
+    /**
+     * Creates a new context on a device and adds it to the pool, where it is immediately available
+     * @param deviceIndex index of the device
+     * @return the new context, or null if the device was drained while the context was being created (the context
+     * is then closed)
+     */
+    public C addContext(int deviceIndex) {
+        synchronized (this) {
+            reserve(deviceIndex);
+        }
+        return createReserved(deviceIndex);
+    }
+
+    /**
+     * Same as {@link ContextPool#addContext(int)}, the context is created in a background thread. It counts as a
+     * context of its device right away, see {@link ContextPool#nExpectedInstances(int)}.
+     * @param deviceIndex index of the device
+     * @return completed with the new context, or with null if the device was drained while the context was being created
+     */
+    public CompletableFuture<C> addContextAsync(int deviceIndex) {
+        final CompletableFuture<C> result = new CompletableFuture<>();
+        synchronized (this) {
+            reserve(deviceIndex);
+        }
+        new Thread(() -> {
+            try {
+                result.complete(createReserved(deviceIndex));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }, name + " instance creation").start();
+        return result;
+    }
+
+    /**
+     * Creates an instance reserved with {@link ContextPool#reserve(int)}, and adds it to the pool
+     * @return the new instance, or null if it was drained while being created
+     */
+    private C createReserved(int deviceIndex) {
+        boolean isReserved = true;
+        try {
+            if (isShuttingDown) {
+                throw new RuntimeException("The " + name + " is being shut down, can't add any instance!");
+            }
+            long start = System.nanoTime();
+            C context = factory.create(deviceIndex); // Can be slow, done outside of the lock
+            long startupTime = (System.nanoTime() - start) / 1000000;
+            System.out.println(name + ": instance created on device " + deviceIndex + " in " + startupTime + " ms");
+            boolean isDrained = false;
+            synchronized (this) {
+                if (cancelledCreations.getOrDefault(deviceIndex, 0) > 0) {
+                    isDrained = true;
+                    if (cancelledCreations.merge(deviceIndex, -1, Integer::sum) <= 0) cancelledCreations.remove(deviceIndex);
+                }
+                unreserve(deviceIndex);
+                isReserved = false;
+                if (isShuttingDown) {
+                    factory.close(context);
+                    throw new RuntimeException("The " + name + " is being shut down, can't add any instance!");
+                }
+                if (isDrained) {
+                    notifyAll();
+                } else {
+                    allInstances.add(context);
+                    deviceIndices.put(context, deviceIndex);
+                    startupTimes.put(context, startupTime);
+                    idleInstances.add(context);
+                    dispatch();
+                }
+            }
+            if (isDrained) {
+                System.out.println(name + ": instance on device " + deviceIndex + " drained as soon as it was created");
+                factory.close(context);
+                return null;
+            }
+            deliver();
+            return context;
+        } finally {
+            if (isReserved) {
+                synchronized (this) {
+                    unreserve(deviceIndex);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drains contexts of a device out of the pool: planned contexts (LAZY startup) are not created, idle contexts
+     * are closed immediately, contexts being created are closed as soon as they are ready, and busy contexts
+     * finish their current job and are closed when they are returned with {@link ContextPool#release(Object)}.
+     * Contexts are drained in this order.
+     * @param deviceIndex index of the device
+     * @param n number of contexts to drain
+     * @return the number of contexts actually drained, which is lower than n if the device has less contexts
+     */
+    public int removeContexts(int deviceIndex, int n) {
+        List<C> toClose = new ArrayList<>();
+        int nDrained;
+        synchronized (this) {
+            nDrained = drain(deviceIndex, n, toClose);
+        }
+        toClose.forEach(factory::close);
+        return nDrained;
+    }
+
+    /**
+     * Same as {@link ContextPool#removeContexts(int, int)}, must be called while holding the lock of the pool
+     * @param toClose receives the idle contexts, which the caller closes once the lock is released
+     */
+    private int drain(int deviceIndex, int n, List<C> toClose) {
+        int nDrained = 0;
+        for (Iterator<Integer> planned = plannedInstances.descendingIterator(); planned.hasNext() && (nDrained < n); ) {
+            if (planned.next() == deviceIndex) {
+                planned.remove();
+                nDrained++;
+            }
+        }
+        for (C context : new ArrayList<>(idleInstances)) {
+            if (nDrained == n) break;
+            if (deviceIndices.get(context) == deviceIndex) {
+                idleInstances.remove(context);
+                forget(context);
+                toClose.add(context);
+                nDrained++;
+            }
+        }
+        int nCancellable = creatingInstances.getOrDefault(deviceIndex, 0) - cancelledCreations.getOrDefault(deviceIndex, 0);
+        int nCancelled = Math.min(nCancellable, n - nDrained);
+        if (nCancelled > 0) {
+            cancelledCreations.merge(deviceIndex, nCancelled, Integer::sum);
+            nDrained += nCancelled;
+        }
+        for (C context : allInstances) {
+            if (nDrained == n) break;
+            if ((deviceIndices.get(context) == deviceIndex) && (!idleInstances.contains(context)) && (retiringInstances.add(context))) {
+                nDrained++;
+            }
+        }
+        notifyAll();
+        return nDrained;
+    }
+
+    /**
+     * Adds or drains contexts so that a device ends up with the specified number of contexts in the pool. Contexts
+     * being created and planned ones count as contexts of the device, see {@link ContextPool#nExpectedInstances(int)}:
+     * concurrent calls do not add more contexts than specified.
+     * @param deviceIndex index of the device
+     * @param n number of contexts for this device, 0 to remove the device from the pool
+     */
+    public void setNumberOfInstances(int deviceIndex, int n) {
+        List<C> toClose = new ArrayList<>();
+        int nToAdd;
+        synchronized (this) {
+            int current = nExpectedInstances(deviceIndex);
+            nToAdd = Math.max(0, n - current);
+            for (int i = 0; i < nToAdd; i++) {
+                reserve(deviceIndex);
+            }
+            if (current > n) {
+                drain(deviceIndex, current - n, toClose);
+            }
+        }
+        toClose.forEach(factory::close);
+        for (int i = 0; i < nToAdd; i++) {
+            try {
+                createReserved(deviceIndex);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    for (int j = i + 1; j < nToAdd; j++) unreserve(deviceIndex); // Gives the remaining reservations back
+                    notifyAll();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param deviceIndex index of a device
+     * @return the device memory currently allocated by the contexts of this device, or -1 if the factory cannot
+     * tell, see {@link Factory#getUsedMemoryInBytes(Object)}
+     */
+    public synchronized long getUsedMemoryInBytes(int deviceIndex) {
+        long used = -1;
+        for (C context : allInstances) {
+            if (deviceIndices.get(context) != deviceIndex) continue;
+            long bytes = factory.getUsedMemoryInBytes(context);
+            if (bytes >= 0) used = Math.max(used, 0) + bytes;
+        }
+        return used;
+    }
+
+    /**
+     * @return a String representation of all contexts of the pool with their identifier and status (idle, busy)
+     */
+    public synchronized String getDetails() {
+        StringBuilder text = new StringBuilder();
+        text.append(name).append(" [")
+                .append("size:").append(this.allInstances.size()).append(" idle:").append(this.idleInstances.size())
+                .append(" pending:").append(this.pendingRequests.size());
+        if (nCreatingInstances > 0) text.append(" creating:").append(nCreatingInstances);
+        if (!plannedInstances.isEmpty()) text.append(" planned:").append(plannedInstances.size());
+        text.append("]:\n");
+        for (Map.Entry<Integer, Health> device : health.entrySet()) {
+            text.append("\t- Device [").append(device.getKey()).append("] health [").append(device.getValue()).append("]\n");
+        }
+        for (C context : allInstances) {
+            text.append(idleInstances.contains(context) ? "\t- [IDLE] " : retiringInstances.contains(context) ? "\t- [DRAINING] " : "\t- [BUSY] ")
+                    .append("[").append(deviceIndices.get(context)).append("] ").append(factory.getName(context)).append(" \n");
+            appendDetails(text, context);
+            text.append("\t\t- Startup [").append(startupTimes.get(context)).append(" ms]")
+                    .append("  Failures [").append(totalFailures.getOrDefault(context, 0)).append(" total, ")
+                    .append(consecutiveFailures.getOrDefault(context, 0)).append(" in a row]\n")
+                    .append("\t\t- ").append(context).append("\n");
+        }
+        if (isShuttingDown) {text.append("SHUTDOWN");}
+        return text.toString();
+    }
+
+    /**
+     * Adds lines describing a context to {@link ContextPool#getDetails()}, called while holding the lock of the pool
+     * @param text the details
+     * @param context a context of the pool
+     */
+    protected void appendDetails(StringBuilder text, C context) {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " [size:" + this.allInstances.size() + " idle:" + this.idleInstances.size() + "]" + ((isShuttingDown?"SHUTDOWN!":""));
+    }
+
+    /**
+     * @return an idle context from the pool, immediately if one is available from the pool OR
+     * blocks until one becomes available.
+     * <p>
+     * The returned context should be returned to the pool once its job is done with {@link ContextPool#release(Object)}
+     */
+    public C acquire() {
+        return acquire(DEFAULT_PRIORITY);
+    }
+
+    /**
+     * @param priority requests with a higher priority are served first, requests of identical priority are served
+     *                 in the order they were made
+     * @return an idle context from the pool, immediately if one is available from the pool OR
+     * blocks until one becomes available.
+     * <p>
+     * The returned context should be returned to the pool once its job is done with {@link ContextPool#release(Object)}
+     */
+    public C acquire(int priority) {
+        return request(priority, null).get();
+    }
+
+    /**
+     * Acquires an idle context without blocking the calling thread.
+     * <p>
+     * Once the returned future completes with a context, the caller owns it and has to return it with
+     * {@link ContextPool#release(Object)}. Cancelling the future withdraws the request; if a context has been
+     * handed to the request in the meantime, it is put back into the pool automatically.
+     *
+     * @param priority requests with a higher priority are served first
+     * @param timeout maximal time to wait for a context, 0 or less to wait without limit
+     * @param unit unit of the timeout
+     * @param executor executor which completes the returned future, and thus runs its dependent stages
+     * @return a future completed with a context, or completed exceptionally with a {@link TimeoutException}
+     * on timeout or a {@link CancellationException} if the pool is shut down
+     */
+    public CompletableFuture<C> acquireAsync(int priority, long timeout, TimeUnit unit, Executor executor) {
+        final CompletableFuture<C> result = new CompletableFuture<>();
+        final Request request;
+        try {
+            request = request(priority, null);
+        } catch (RuntimeException e) { // The pool is shut down
+            result.completeExceptionally(e);
+            return result;
+        }
+        // Hands the context over in the executor: the internal future is completed while holding the lock of the pool
+        request.future.whenCompleteAsync((context, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (!result.complete(context)) {
+                release(context); // The result was cancelled or timed out in the meantime
+            }
+        }, executor);
+        final ScheduledFuture<?> timer = timeout > 0 ? getTimer().schedule(() -> {
+            result.completeExceptionally(new TimeoutException("No idle instance after " + timeout + " " + unit));
+        }, timeout, unit) : null;
+        result.whenComplete((context, error) -> {
+            if (timer != null) timer.cancel(false); // Removed from the queue of the timer
+            if (error != null) request.cancel();
+        });
+        return result;
+    }
+
+    /**
+     * Same as {@link ContextPool#acquireAsync(int, long, TimeUnit, Executor)}, without timeout, completed in the
+     * common {@link ForkJoinPool}
+     */
+    public CompletableFuture<C> acquireAsync(int priority) {
+        return acquireAsync(priority, 0, TimeUnit.MILLISECONDS, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs a task on an idle context, which is always returned to the pool once the task is done,
+     * whether it succeeded or not. The calling thread is not blocked.
+     *
+     * @param priority requests with a higher priority are served first
+     * @param timeout maximal time to wait for a context, 0 or less to wait without limit
+     * @param unit unit of the timeout
+     * @param executor executor which runs the task
+     * @param task the task to run, the context must not be used after the task returns
+     * @param <R> type of the result of the task
+     * @return a future completed with the result of the task; cancelling it before a context is acquired
+     * withdraws the request
+     */
+    public <R> CompletableFuture<R> submit(int priority, long timeout, TimeUnit unit, Executor executor, Function<C, R> task) {
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        final CompletableFuture<C> acquired = acquireAsync(priority, timeout, unit, executor);
+        acquired.whenCompleteAsync((context, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            try {
+                if (!result.isDone()) {
+                    result.complete(task.apply(context));
+                }
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                release(context);
+            }
+        }, executor);
+        result.whenComplete((r, error) -> {
+            if (result.isCancelled()) acquired.cancel(false);
+        });
+        return result;
+    }
+
+    /**
+     * Same as {@link ContextPool#submit(int, long, TimeUnit, Executor, Function)}, without timeout, run in the
+     * common {@link ForkJoinPool}
+     */
+    public <R> CompletableFuture<R> submit(int priority, Function<C, R> task) {
+        return submit(priority, 0, TimeUnit.MILLISECONDS, ForkJoinPool.commonPool(), task);
+    }
+
+    /**
+     * Runs a task on an idle context in the calling thread, blocking until a context is available.
+     * The context is always returned to the pool once the task is done, whether it succeeded or not.
+     *
+     * @param priority requests with a higher priority are served first
+     * @param task the task to run, the context must not be used after the task returns
+     * @param <R> type of the result of the task
+     * @return the result of the task
+     */
+    public <R> R run(int priority, Function<C, R> task) {
+        C context = acquire(priority);
+        try {
+            return task.apply(context);
+        } finally {
+            release(context);
+        }
+    }
+
+    /**
+     * Runs a task on an idle context in the calling thread, blocking until a context is available. If the task
+     * throws a device failure, see {@link Factory#isDeviceFailure(Throwable)}, the failure is reported with
+     * {@link ContextPool#releaseFailed(Object, Throwable)} and the task is run again, on a context of another device
+     * if one is idle at that time. Other errors are thrown right away, the context is released as if the task had
+     * succeeded.
+     *
+     * @param priority requests with a higher priority are served first
+     * @param isNeeded optional (can be null), see {@link ContextPool#request(int, BooleanSupplier)}
+     * @param maxAttempts number of times the task is run at most
+     * @param task the task to run, the context must not be used after the task returns
+     * @param <R> type of the result of the task
+     * @return the result of the first successful run of the task
+     * @throws CancellationException if the task is not needed anymore
+     * @throws RuntimeException the failure of the last attempt, or the first error which is not a device failure
+     */
+    public <R> R runWithRetry(int priority, BooleanSupplier isNeeded, int maxAttempts, Function<C, R> task) {
+        int failedDevice = -1;
+        for (int attempt = 1; ; attempt++) {
+            C context = request(priority, isNeeded, failedDevice).get();
+            R result;
+            try {
+                result = task.apply(context);
+            } catch (RuntimeException | Error e) {
+                if (!factory.isDeviceFailure(e)) {
+                    release(context);
+                    throw e;
+                }
+                failedDevice = getDeviceIndex(context);
+                releaseFailed(context, e);
+                if (attempt >= maxAttempts) throw e;
+                synchronized (this) {
+                    if (failedDevice >= 0) health(failedDevice).nRetried++;
+                }
+                System.err.println(name + ": retrying a task which failed on device " + failedDevice + " (attempt " + (attempt + 1) + "/" + maxAttempts + ")");
+                continue;
+            }
+            synchronized (this) {
+                int deviceIndex = getDeviceIndex(context);
+                if (deviceIndex >= 0) health(deviceIndex).nSucceeded++;
+            }
+            release(context);
+            return result;
+        }
+    }
+
+    static private ScheduledThreadPoolExecutor TIMER = null;
+
+    /**
+     * @return the timer of the timeouts of {@link ContextPool#acquireAsync(int, long, TimeUnit, Executor)}, which
+     * forgets the timeouts cancelled when a request completes in time
+     */
+    static synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (TIMER == null) {
+            TIMER = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "ContextPool timeouts");
+                thread.setDaemon(true);
+                return thread;
+            });
+            TIMER.setRemoveOnCancelPolicy(true);
+        }
+        return TIMER;
+    }
+
+    /**
+     * Places a request for an idle context without blocking. The context is obtained with {@link Request#get()}.
+     *
+     * @param priority requests with a higher priority are served first, requests of identical priority are served
+     *                 in the order they were made
+     * @param isNeeded optional (can be null), evaluated before a context is handed to this request: if it returns
+     *                 false, the request is cancelled instead and the context goes to the next request. It is evaluated
+     *                 outside of the lock of the pool, by the thread which hands the context over (the one placing the
+     *                 request or releasing a context): it may call the pool, but should be fast, the context being
+     *                 reserved meanwhile
+     * @return the request, which can be re-prioritized or cancelled as long as it is waiting
+     */
+    public Request request(int priority, BooleanSupplier isNeeded) {
+        return request(priority, isNeeded, -1);
+    }
+
+    /**
+     * Same as {@link ContextPool#request(int, BooleanSupplier)}, preferring the contexts of other devices than
+     * avoidedDevice: a context of this device is only handed to the request if no other one is idle
+     *
+     * @param avoidedDevice index of the device to avoid, -1 for none
+     */
+    public Request request(int priority, BooleanSupplier isNeeded, int avoidedDevice) {
+        Request request;
+        synchronized (this) {
+            if (isShuttingDown) {
+                throw new RuntimeException("The " + name + " is being shut down, can't get any instance!");
+            }
+            if (isEmptyAfterQuarantine()) {
+                throw new RuntimeException("All instances of the " + name + " have been quarantined, can't get any instance!");
+            }
+            request = new Request(priority, requestCounter++, isNeeded, avoidedDevice);
+            pendingRequests.add(request);
+            dispatch();
+            if ((!request.future.isDone()) && (request.offered == null) && (!plannedInstances.isEmpty()) && (pendingRequests.size() > nCreatingInstances)) {
+                createInBackground(plannedInstances.poll()); // LAZY startup: creates an instance on demand
+            }
+        }
+        deliver();
+        return request;
+    }
+
+    /**
+     * Put back a context into the queue of idle contexts, or closes it if it is being drained
+     * @param context the context to recycle
+     */
+    public void release(C context) {
+        boolean isIdle;
+        synchronized (this) {
+            if (!allInstances.contains(context)) {
+                System.err.println(factory.getName(context) + ", instance " + context + " is not part of the pool " + this);
+                return;
+            }
+            consecutiveFailures.remove(context);
+            isIdle = recycle(context);
+        }
+        deliver();
+        if (!isIdle) factory.close(context); // Drained instance
+    }
+
+    /**
+     * Put back a context which failed during its task. After too many consecutive failures, see
+     * {@link ContextPool#setQuarantine(int, int)}, the context is quarantined: it is removed from the pool and
+     * closed, and possibly replaced by a new context on the same device. Otherwise, it is recycled as with
+     * {@link ContextPool#release(Object)}.
+     *
+     * @param context the context to recycle
+     * @param error the failure, logged
+     */
+    public void releaseFailed(C context, Throwable error) {
+        boolean isIdle = false;
+        synchronized (this) {
+            if (!allInstances.contains(context)) {
+                System.err.println(factory.getName(context) + ", instance " + context + " is not part of the pool " + this);
+                return;
+            }
+            int deviceIndex = deviceIndices.get(context);
+            int nFailures = consecutiveFailures.merge(context, 1, Integer::sum);
+            totalFailures.merge(context, 1, Integer::sum);
+            health(deviceIndex).nFailed++;
+            System.err.println(name + ": failure on device " + deviceIndex + ", instance " + context + " (" + nFailures + " in a row): " + error);
+            if (nFailures < maxConsecutiveFailures) {
+                isIdle = recycle(context);
+            } else {
+                idleInstances.remove(context);
+                forget(context);
+                Health device = health(deviceIndex);
+                device.nQuarantined++;
+                if ((!isShuttingDown) && (device.nReplaced < maxReplacementsPerDevice)) {
+                    device.nReplaced++;
+                    System.err.println(name + ": instance " + context + " quarantined, replaced by a new instance on device " + deviceIndex);
+                    createInBackground(deviceIndex);
+                } else {
+                    System.err.println(name + ": instance " + context + " quarantined");
+                    failIfNoInstanceLeft();
+                }
+                notifyAll();
+            }
+        }
+        deliver();
+        if (isIdle) return;
+        // Drained or quarantined instance, closed in the background: the device may not respond anymore
+        new Thread(() -> {
+            try {
+                factory.close(context);
+            } catch (Throwable e) {
+                System.err.println(name + ": could not close instance " + context + ": " + e.getMessage());
+            }
+        }, name + " instance closing").start();
+    }
+
+    /**
+     * Puts back a context of the pool into the idle contexts, or removes it if it is being drained.
+     * Must be called while holding the lock of the pool.
+     * @return true if the context is idle, false if it has to be closed by the caller
+     */
+    private boolean recycle(C context) {
+        if (idleInstances.contains(context)) {
+            System.err.println(factory.getName(context) + ", instance " + context + " has already been recycled!");
+            return true;
+        }
+        if (!retiringInstances.remove(context)) {
+            idleInstances.add(context);
+            dispatch();
+            notifyAll(); // Wakes up a shutdown waiting for all instances to be idle
+            return true;
+        }
+        forget(context);
+        notifyAll();
+        return false;
+    }
+
+    /**
+     * Removes a context from the pool. Must be called while holding the lock of the pool.
+     */
+    private void forget(C context) {
+        allInstances.remove(context);
+        deviceIndices.remove(context);
+        startupTimes.remove(context);
+        retiringInstances.remove(context);
+        consecutiveFailures.remove(context);
+        totalFailures.remove(context);
+    }
+
+    private Health health(int deviceIndex) {
+        return health.computeIfAbsent(deviceIndex, d -> new Health());
+    }
+
+    /**
+     * @return true if the pool has no instance left, and none will be created, because instances were quarantined
+     */
+    private boolean isEmptyAfterQuarantine() {
+        return allInstances.isEmpty() && (nCreatingInstances == 0) && plannedInstances.isEmpty()
+                && health.values().stream().anyMatch(device -> device.nQuarantined > 0);
+    }
+
+    /**
+     * Fails the pending requests if no instance is left to serve them, instead of letting them wait forever.
+     * Must be called while holding the lock of the pool.
+     */
+    private void failIfNoInstanceLeft() {
+        if (!isEmptyAfterQuarantine()) return;
+        System.err.println(name + ": all instances have been quarantined");
+        while (!pendingRequests.isEmpty()) {
+            pendingRequests.poll().future.completeExceptionally(
+                    new RuntimeException("All instances of the " + name + " have been quarantined"));
+        }
+    }
+
+    /**
+     * @param maxConsecutiveFailures a context failing this many times in a row is quarantined, 3 by default
+     * @param maxReplacementsPerDevice number of quarantined contexts replaced by a new context, per device,
+     *                                 1 by default, 0 to never replace them
+     */
+    public synchronized void setQuarantine(int maxConsecutiveFailures, int maxReplacementsPerDevice) {
+        this.maxConsecutiveFailures = Math.max(1, maxConsecutiveFailures);
+        this.maxReplacementsPerDevice = Math.max(0, maxReplacementsPerDevice);
+    }
+
+    /**
+     * @param deviceIndex index of a device
+     * @return a copy of the failure counters of the device
+     */
+    public synchronized Health getHealth(int deviceIndex) {
+        return health(deviceIndex).copy();
+    }
+
+    /**
+     * Hands idle contexts to the highest priority pending requests, skipping the cancelled ones. A request with an
+     * isNeeded condition only gets a context reserved, which is handed over by {@link ContextPool#deliver()}.
+     * Must be called while holding the lock of the pool.
+     */
+    private void dispatch() {
+        while (!idleInstances.isEmpty() && !pendingRequests.isEmpty()) {
+            Request request = pendingRequests.poll();
+            if (request.future.isDone()) continue; // Cancelled while waiting
+            C context = pollIdle(request.avoidedDevice);
+            if (request.isNeeded != null) {
+                request.offered = context;
+                offeredRequests.add(request);
+            } else if (!request.future.complete(context)) {
+                idleInstances.addFirst(context); // Lost a race against a cancellation
+            }
+        }
+    }
+
+    /**
+     * Hands the reserved contexts over to the requests which are still needed, and puts the others back into the
+     * pool. The isNeeded conditions are user code, evaluated here outside of the lock of the pool. Must be called
+     * after each dispatch, once the lock is released: a nested call returns immediately, the outermost caller
+     * delivering the contexts.
+     */
+    private void deliver() {
+        if (Thread.holdsLock(this)) return;
+        while (true) {
+            final Request request;
+            final C context;
+            synchronized (this) {
+                request = offeredRequests.poll();
+                if (request == null) return;
+                context = request.offered;
+                request.offered = null;
+            }
+            boolean isNeeded = false;
+            try {
+                isNeeded = request.isNeeded.getAsBoolean();
+            } catch (RuntimeException e) {
+                request.future.completeExceptionally(e);
+            }
+            if (!isNeeded) request.future.cancel(false);
+            if (isNeeded && request.future.complete(context)) continue;
+            // Not needed anymore, or cancelled in the meantime: the context goes to the next request
+            boolean isIdle;
+            synchronized (this) {
+                isIdle = (!allInstances.contains(context)) || recycle(context); // Closed by a forced shutdown, or recycled
+            }
+            if (!isIdle) factory.close(context); // Drained instance
+        }
+    }
+
+    /**
+     * @return an idle context, of another device than avoidedDevice if possible. Must be called while holding the lock of the pool.
+     */
+    private C pollIdle(int avoidedDevice) {
+        if (avoidedDevice >= 0) {
+            for (C context : idleInstances) {
+                if (deviceIndices.get(context) != avoidedDevice) {
+                    idleInstances.remove(context);
+                    return context;
+                }
+            }
+        }
+        return idleInstances.poll();
+    }
+
+    /**
+     * A pending request for an idle context of the pool, see {@link ContextPool#request(int, BooleanSupplier)}
+     */
+    public class Request implements Comparable<Request> {
+
+        private int priority;
+        final private long sequence;
+        final private BooleanSupplier isNeeded;
+        final private int avoidedDevice;
+        final private CompletableFuture<C> future = new CompletableFuture<>();
+        private C offered = null; // Context reserved until isNeeded is checked, guarded by the lock of the pool
+
+        private Request(int priority, long sequence, BooleanSupplier isNeeded, int avoidedDevice) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.isNeeded = isNeeded;
+            this.avoidedDevice = avoidedDevice;
+        }
+
+        /**
+         * @return the context handed to this request, blocks until one becomes available.
+         * It should be returned to the pool with {@link ContextPool#release(Object)} once its job is done.
+         * @throws CancellationException if the request has been cancelled or the pool has been shut down
+         */
+        public C get() {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!cancel()) { // Too late, a context was handed to this request: give it back
+                    release(future.join());
+                }
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /**
+         * @param timeout maximal time to wait
+         * @param unit unit of the timeout
+         * @return the context handed to this request, blocks until one becomes available or the timeout
+         * expires. It should be returned to the pool with {@link ContextPool#release(Object)} once its job is done.
+         * @throws TimeoutException if no context became available in time, the request is then cancelled
+         * @throws CancellationException if the request has been cancelled or the pool has been shut down
+         */
+        public C get(long timeout, TimeUnit unit) throws TimeoutException {
+            try {
+                return future.get(timeout, unit);
+            } catch (TimeoutException e) {
+                if (cancel()) throw e;
+                return future.join(); // A context was handed to this request right after the timeout
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!cancel()) {
+                    release(future.join());
+                }
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /**
+         * @return the current priority of this request
+         */
+        public int getPriority() {
+            synchronized (ContextPool.this) {
+                return priority;
+            }
+        }
+
+        /**
+         * Changes the priority of this request, if it is still waiting for a context
+         * @param priority new priority, requests with a higher priority are served first
+         */
+        public void setPriority(int priority) {
+            synchronized (ContextPool.this) {
+                if (pendingRequests.remove(this)) {
+                    this.priority = priority;
+                    pendingRequests.add(this);
+                } else {
+                    this.priority = priority;
+                }
+            }
+        }
+
+        /**
+         * Withdraws this request from the pool
+         * @return true if the request was cancelled before a context was handed to it, false if a context has
+         * already been handed to it, in which case the caller still has to return it with {@link ContextPool#release(Object)}
+         */
+        public boolean cancel() {
+            synchronized (ContextPool.this) {
+                pendingRequests.remove(this);
+                return future.cancel(false) || future.isCancelled();
+            }
+        }
+
+        /**
+         * @return true if this request has been cancelled, either explicitly, because it was not needed anymore
+         * or because the pool has been shut down
+         */
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority); // Highest priority first
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Orderly shutdown of the pool, cancels all pending requests and closes all contexts
+     * until no one is left in the pool
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (isShuttingDown) return; // It's already shutting down in another thread
+            isShuttingDown = true;
+            cancelPendingRequests();
+            plannedInstances.clear();
+        }
+
+        while (true) {
+            C context;
+            synchronized (this) {
+                while (idleInstances.isEmpty() && ((!allInstances.isEmpty()) || (nCreatingInstances > 0))) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                }
+                if (allInstances.isEmpty()) break;
+                context = idleInstances.poll();
+                forget(context);
+            }
+            factory.close(context);
+        }
+    }
+
+    /**
+     * Forces shutdown of the pool, even if some contexts are still busy.
+     * May be useful, use at your own risk!
+     */
+    public void forceShutdown() {
+        List<C> toClose;
+        synchronized (this) {
+            isShuttingDown = true;
+            cancelPendingRequests();
+            idleInstances.clear();
+            toClose = new ArrayList<>(allInstances);
+            allInstances.clear();
+            deviceIndices.clear();
+            retiringInstances.clear();
+            startupTimes.clear();
+            consecutiveFailures.clear();
+            totalFailures.clear();
+            plannedInstances.clear();
+        }
+        toClose.forEach(context ->
+            new Thread(() -> factory.close(context)).start()
+        );
+    }
+
+    private void cancelPendingRequests() {
+        while (!pendingRequests.isEmpty()) {
+            pendingRequests.poll().future.cancel(false);
+        }
+    }
+
+}
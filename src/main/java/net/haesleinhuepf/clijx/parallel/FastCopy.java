@@ -0,0 +1,451 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.imglib2.Cursor;
+import net.imglib2.Dirty;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.NativeImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Fast implementation of {@link CLIJxFilterOp.Util#copy(RandomAccessible, RandomAccessibleInterval)} and
+ * {@link CLIJxFilterOp.Util#copyReal(RandomAccessible, RandomAccessibleInterval)}.
+ * <p>
+ * When source and target are backed by a single primitive array (an {@link ArrayImg} or the single cell
+ * handed to a cell loader), possibly seen through translations and interval views, the copy is done line by line
+ * with {@link System#arraycopy(Object, int, Object, int, int)} for identical types, or with a tight loop for
+ * conversions to float and double. A source stored in cells (a {@link net.imglib2.img.cell.CellImg} or a cached
+ * cell image) is copied cell by cell, each cell from its own array. Anything else goes through the generic per pixel
+ * copy. In all cases, large intervals are split across the threads of the common {@link ForkJoinPool}.
+ */
+public class FastCopy {
+
+    /**
+     * Number of pixels above which a copy is split across threads
+     */
+    public static final long PARALLEL_THRESHOLD = 1 << 18;
+
+    private enum Kind { UINT8, INT8, UINT16, INT16, INT32, INT64, FLOAT32, FLOAT64 }
+
+    /**
+     * Same as {@link CLIJxFilterOp.Util#copy(RandomAccessible, RandomAccessibleInterval)}
+     */
+    public static <T extends Type<T>> void copy(
+            final RandomAccessible<? extends T> source,
+            final RandomAccessibleInterval<T> target) {
+
+        final Consumer<Interval> genericCopy = chunk -> Views.flatIterable(Views.interval(Views.pair(source, target), chunk)).forEach(
+                pair -> pair.getB().set(pair.getA()));
+        final Flat src = Flat.of(source, target);
+        final Flat tgt = Flat.of(target, target);
+        if ((src != null) && (tgt != null) && (src.kind == tgt.kind)) {
+            copyLines(src, tgt, target);
+            return;
+        }
+        if ((src == null) && (tgt != null) && copyCells(source, target, tgt, false, genericCopy)) {
+            return;
+        }
+        forEachChunk(target, genericCopy);
+    }
+
+    /**
+     * Same as {@link CLIJxFilterOp.Util#copyReal(RandomAccessible, RandomAccessibleInterval)}
+     */
+    public static <T extends RealType<T>, S extends RealType<S>> void copyReal(
+            final RandomAccessible<? extends T> source,
+            final RandomAccessibleInterval<? extends S> target) {
+
+        final Consumer<Interval> genericCopy = chunk -> Views.flatIterable(Views.interval(Views.pair(source, target), chunk)).forEach(
+                pair -> pair.getB().setReal(pair.getA().getRealDouble()));
+        final Flat src = Flat.of(source, target);
+        final Flat tgt = Flat.of(target, target);
+        if ((src != null) && (tgt != null) && isSupported(src.kind, tgt.kind)) {
+            copyLines(src, tgt, target);
+            return;
+        }
+        if ((src == null) && (tgt != null) && copyCells(source, target, tgt, true, genericCopy)) {
+            return;
+        }
+        forEachChunk(target, genericCopy);
+    }
+
+    /**
+     * Same as {@link CLIJxFilterOp.Util#unpackBits(byte[], long[], RandomAccessibleInterval)}
+     */
+    public static void unpackBits(
+            final byte[] bits,
+            final long[] dimensions,
+            final RandomAccessibleInterval<? extends RealType<?>> target) {
+
+        final long packedWidth = (dimensions[0] + 7) / 8;
+        final Flat tgt = Flat.of(target, target);
+        if (tgt == null) {
+            final Cursor<? extends RealType<?>> cursor = Views.flatIterable(target).localizingCursor();
+            final long[] position = new long[target.numDimensions()];
+            while (cursor.hasNext()) {
+                final RealType<?> pixel = cursor.next();
+                cursor.localize(position);
+                pixel.setReal(bit(bits, (int) (packedLine(position, dimensions) * packedWidth), (int) position[0]));
+            }
+            return;
+        }
+        final int width = (int) target.dimension(0);
+        forEachLine(target, position -> {
+            final int p = (int) (packedLine(position, dimensions) * packedWidth);
+            final int t = tgt.index(position);
+            final int x = (int) position[0];
+            switch (tgt.kind) {
+                case UINT8: case INT8: { final byte[] a = (byte[]) tgt.array; for (int i = 0; i < width; i++) a[t + i] = (byte) bit(bits, p, x + i); break; }
+                case UINT16: case INT16: { final short[] a = (short[]) tgt.array; for (int i = 0; i < width; i++) a[t + i] = (short) bit(bits, p, x + i); break; }
+                case INT32: { final int[] a = (int[]) tgt.array; for (int i = 0; i < width; i++) a[t + i] = bit(bits, p, x + i); break; }
+                case INT64: { final long[] a = (long[]) tgt.array; for (int i = 0; i < width; i++) a[t + i] = bit(bits, p, x + i); break; }
+                case FLOAT32: { final float[] a = (float[]) tgt.array; for (int i = 0; i < width; i++) a[t + i] = bit(bits, p, x + i); break; }
+                case FLOAT64: { final double[] a = (double[]) tgt.array; for (int i = 0; i < width; i++) a[t + i] = bit(bits, p, x + i); break; }
+                default: throw new IllegalStateException();
+            }
+        });
+        if (tgt.access instanceof Dirty) {
+            ((Dirty) tgt.access).setDirty();
+        }
+    }
+
+    /**
+     * @return bit x of the packed line starting at index p, 0 or 1
+     */
+    private static int bit(final byte[] bits, final int p, final int x) {
+        return (bits[p + (x >>> 3)] >>> (x & 7)) & 1;
+    }
+
+    /**
+     * @return the index of the line of a position in an image of the given dimensions, ignoring X
+     */
+    private static long packedLine(final long[] position, final long[] dimensions) {
+        long line = 0;
+        for (int d = position.length - 1; d >= 1; d--) {
+            line = line * dimensions[d] + position[d];
+        }
+        return line;
+    }
+
+    private static boolean isSupported(final Kind source, final Kind target) {
+        return (source == target) || (target == Kind.FLOAT32) || (target == Kind.FLOAT64);
+    }
+
+    /**
+     * Splits an interval along its last dimension and runs the chunks in parallel if it is large enough
+     * and if its pixels can be written concurrently.
+     */
+    private static void forEachChunk(final RandomAccessibleInterval<?> target, final Consumer<Interval> chunkCopy) {
+        final int n = target.numDimensions();
+        final int nTasks = (int) Math.min(nTasks(Intervals.numElements(target)), target.dimension(n - 1));
+        final Object type = target.getType();
+        final boolean isConcurrentSafe = (type instanceof NativeType) && (((NativeType<?>) type).getEntitiesPerPixel().getRatio() >= 1);
+        if ((nTasks <= 1) || (!isConcurrentSafe)) {
+            chunkCopy.accept(target);
+            return;
+        }
+        final long[] min = Intervals.minAsLongArray(target);
+        final long[] max = Intervals.maxAsLongArray(target);
+        final long size = target.dimension(n - 1);
+        parallel(nTasks, task -> {
+            final long[] chunkMin = min.clone();
+            final long[] chunkMax = max.clone();
+            chunkMin[n - 1] = min[n - 1] + size * task / nTasks;
+            chunkMax[n - 1] = min[n - 1] + size * (task + 1) / nTasks - 1;
+            chunkCopy.accept(Intervals.createMinMax(concat(chunkMin, chunkMax)));
+        });
+    }
+
+    private static void copyLines(final Flat src, final Flat tgt, final Interval interval) {
+        final int width = (int) interval.dimension(0);
+        forEachLine(interval, position -> copyLine(src, src.index(position), tgt, tgt.index(position), width));
+        if (tgt.access instanceof Dirty) {
+            ((Dirty) tgt.access).setDirty(); // as the per pixel setters would do
+        }
+    }
+
+    /**
+     * Copies a source stored in cells, possibly seen through translations and interval views, cell by cell: the part
+     * of the interval covered by a cell is copied in bulk from the array of the cell. Cells are loaded, if the source
+     * is a cached cell image, and copied in parallel. A cell which is not stored in a primitive array is copied with
+     * the generic copy.
+     *
+     * @param isReal true if the conversions of copyReal are allowed, false to require identical types
+     * @return false if the source is not a cell image or its type does not fit the target, nothing is copied then
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static boolean copyCells(final RandomAccessible<?> source, final Interval interval, final Flat tgt,
+                                     final boolean isReal, final Consumer<Interval> genericCopy) {
+        final int n = interval.numDimensions();
+        final long[] translation = new long[n];
+        final RandomAccessible<?> unwrapped = Flat.unwrap(source, translation);
+        if (!(unwrapped instanceof AbstractCellImg)) return false;
+        final AbstractCellImg<?, ?, ?, ?> img = (AbstractCellImg<?, ?, ?, ?>) unwrapped;
+        final Kind kind = img.getType() == null ? null : kindOf(img.getType());
+        if ((kind == null) || (isReal ? !isSupported(kind, tgt.kind) : (kind != tgt.kind))) return false;
+
+        // Range of the cells intersecting the interval, in the cell grid
+        final CellGrid grid = img.getCellGrid();
+        final long[] gridMin = new long[n];
+        final long[] gridDimensions = new long[n];
+        for (int d = 0; d < n; d++) {
+            final long min = interval.min(d) + translation[d];
+            final long max = interval.max(d) + translation[d];
+            if ((min < img.min(d)) || (max > img.max(d))) return false;
+            gridMin[d] = (min - img.min(d)) / grid.cellDimension(d);
+            gridDimensions[d] = (max - img.min(d)) / grid.cellDimension(d) - gridMin[d] + 1;
+        }
+        final long nCells = Intervals.numElements(gridDimensions);
+        final int nTasks = (int) Math.min(nCells, nTasks(Intervals.numElements(interval)));
+
+        parallel(nTasks, task -> {
+            final RandomAccess<? extends Cell<?>> cells = ((RandomAccessible) img.getCells()).randomAccess();
+            final long[] gridPosition = new long[n];
+            final long[] partMin = new long[n];
+            final long[] partMax = new long[n];
+            for (long i = task; i < nCells; i += nTasks) {
+                IntervalIndexer.indexToPositionWithOffset(i, gridDimensions, gridMin, gridPosition);
+                cells.setPosition(gridPosition);
+                final Cell<?> cell = cells.get();
+                for (int d = 0; d < n; d++) {
+                    partMin[d] = Math.max(interval.min(d), cell.min(d) - translation[d]);
+                    partMax[d] = Math.min(interval.max(d), cell.max(d) - translation[d]);
+                }
+                final Interval part = new FinalInterval(partMin, partMax);
+                final Flat src = Flat.ofCell(cell, kind, translation);
+                if (src == null) {
+                    genericCopy.accept(part);
+                } else {
+                    copyLines(src, tgt, part);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Calls a consumer with the first position of each line along X of an interval, splitting the lines across
+     * threads if the interval is large enough. The position array is reused between calls of a same thread.
+     */
+    private static void forEachLine(final Interval interval, final Consumer<long[]> line) {
+        final int n = interval.numDimensions();
+        final long nLines = Intervals.numElements(interval) / interval.dimension(0);
+        final int nTasks = (int) Math.min(nTasks(Intervals.numElements(interval)), nLines);
+        final long[] min = Intervals.minAsLongArray(interval);
+        final long[] dimensions = Intervals.dimensionsAsLongArray(interval);
+
+        parallel(nTasks, task -> {
+            final long firstLine = nLines * task / nTasks;
+            final long lastLine = nLines * (task + 1) / nTasks;
+            final long[] position = min.clone();
+            for (long l = firstLine; l < lastLine; l++) {
+                long rest = l;
+                for (int d = 1; d < n; d++) {
+                    position[d] = min[d] + rest % dimensions[d];
+                    rest = rest / dimensions[d];
+                }
+                line.accept(position);
+            }
+        });
+    }
+
+    private static void copyLine(final Flat src, final int s, final Flat tgt, final int t, final int width) {
+        if (src.kind == tgt.kind) {
+            System.arraycopy(src.array, s, tgt.array, t, width);
+        } else if (tgt.kind == Kind.FLOAT32) {
+            final float[] target = (float[]) tgt.array;
+            switch (src.kind) {
+                case UINT8: { final byte[] a = (byte[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i] & 0xff; break; }
+                case INT8: { final byte[] a = (byte[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i]; break; }
+                case UINT16: { final short[] a = (short[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i] & 0xffff; break; }
+                case INT16: { final short[] a = (short[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i]; break; }
+                case INT32: { final int[] a = (int[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i]; break; }
+                case INT64: { final long[] a = (long[]) src.array; for (int i = 0; i < width; i++) target[t + i] = (float) (double) a[s + i]; break; }
+                case FLOAT64: { final double[] a = (double[]) src.array; for (int i = 0; i < width; i++) target[t + i] = (float) a[s + i]; break; }
+                default: throw new IllegalStateException();
+            }
+        } else if (tgt.kind == Kind.FLOAT64) {
+            final double[] target = (double[]) tgt.array;
+            switch (src.kind) {
+                case UINT8: { final byte[] a = (byte[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i] & 0xff; break; }
+                case INT8: { final byte[] a = (byte[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i]; break; }
+                case UINT16: { final short[] a = (short[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i] & 0xffff; break; }
+                case INT16: { final short[] a = (short[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i]; break; }
+                case INT32: { final int[] a = (int[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i]; break; }
+                case INT64: { final long[] a = (long[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i]; break; }
+                case FLOAT32: { final float[] a = (float[]) src.array; for (int i = 0; i < width; i++) target[t + i] = a[s + i]; break; }
+                default: throw new IllegalStateException();
+            }
+        } else {
+            throw new IllegalStateException("Unsupported conversion " + src.kind + " to " + tgt.kind);
+        }
+    }
+
+    private static long nTasks(final long nElements) {
+        final long nChunks = (nElements + PARALLEL_THRESHOLD - 1) / PARALLEL_THRESHOLD;
+        return Math.max(1, Math.min(nChunks, ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    private static void parallel(final int nTasks, final IntConsumer task) {
+        if (nTasks <= 1) {
+            task.accept(0);
+        } else {
+            IntStream.range(0, nTasks).parallel().forEach(task);
+        }
+    }
+
+    private static long[] concat(final long[] a, final long[] b) {
+        final long[] ab = new long[a.length + b.length];
+        System.arraycopy(a, 0, ab, 0, a.length);
+        System.arraycopy(b, 0, ab, a.length, b.length);
+        return ab;
+    }
+
+    private static Kind kindOf(final Object type) {
+        final Class<?> c = type.getClass();
+        if (c == UnsignedByteType.class) return Kind.UINT8;
+        if (c == ByteType.class) return Kind.INT8;
+        if (c == UnsignedShortType.class) return Kind.UINT16;
+        if (c == ShortType.class) return Kind.INT16;
+        if (c == IntType.class) return Kind.INT32;
+        if (c == LongType.class) return Kind.INT64;
+        if (c == FloatType.class) return Kind.FLOAT32;
+        if (c == DoubleType.class) return Kind.FLOAT64;
+        return null;
+    }
+
+    /**
+     * A view on an image stored in a single primitive array, in row-major order.
+     */
+    private static class Flat {
+
+        final Object array;
+        final Object access;
+        final Kind kind;
+        final long[] origin; // coordinates, in the view, of the first element of the array
+        final long[] strides;
+
+        private Flat(final Object array, final Object access, final Kind kind, final long[] origin, final long[] strides) {
+            this.array = array;
+            this.access = access;
+            this.kind = kind;
+            this.origin = origin;
+            this.strides = strides;
+        }
+
+        int index(final long[] position) {
+            long index = 0;
+            for (int d = 0; d < position.length; d++) {
+                index += (position[d] - origin[d]) * strides[d];
+            }
+            return (int) index;
+        }
+
+        /**
+         * @return the flat representation of an image, or null if it is not stored in a single primitive array
+         * which covers the interval
+         */
+        static Flat of(final RandomAccessible<?> image, final Interval interval) {
+            final int n = image.numDimensions();
+            final long[] translation = new long[n];
+            final RandomAccessible<?> current = unwrap(image, translation);
+            if ((current == null) || (!(current instanceof NativeImg)) || (current instanceof PlanarImg) || (current instanceof AbstractCellImg)) return null;
+            final NativeImg<?, ?> img = (NativeImg<?, ?>) current;
+            final Kind kind = kindOf(img.firstElement());
+            if (kind == null) return null;
+            final Object access = img.update(null);
+            if ((!(access instanceof ArrayDataAccess)) || (((ArrayDataAccess<?>) access).getArrayLength() != Intervals.numElements(img))) return null;
+
+            final long[] origin = new long[n];
+            final long[] strides = new long[n];
+            long stride = 1;
+            for (int d = 0; d < n; d++) {
+                origin[d] = img.min(d) - translation[d];
+                strides[d] = stride;
+                stride *= img.dimension(d);
+                if ((interval.min(d) < origin[d]) || (interval.max(d) >= origin[d] + img.dimension(d))) return null;
+            }
+            return new Flat(((ArrayDataAccess<?>) access).getCurrentStorageArray(), access, kind, origin, strides);
+        }
+
+        /**
+         * @return the flat representation of a cell of a cell image, seen through a translation, or null if the cell
+         * is not stored in a primitive array
+         */
+        static Flat ofCell(final Cell<?> cell, final Kind kind, final long[] translation) {
+            final Object access = cell.getData();
+            if ((!(access instanceof ArrayDataAccess)) || (((ArrayDataAccess<?>) access).getArrayLength() != cell.size())) return null;
+            final int n = cell.numDimensions();
+            final long[] origin = new long[n];
+            final long[] strides = new long[n];
+            long stride = 1;
+            for (int d = 0; d < n; d++) {
+                origin[d] = cell.min(d) - translation[d];
+                strides[d] = stride;
+                stride *= cell.dimension(d);
+            }
+            return new Flat(((ArrayDataAccess<?>) access).getCurrentStorageArray(), access, kind, origin, strides);
+        }
+
+        /**
+         * Unwraps the interval views and translations of an image
+         * @param translation receives the sum of the translations, from the view to the returned image
+         * @return the image under the views, or null if a view is not a translation
+         */
+        static RandomAccessible<?> unwrap(final RandomAccessible<?> image, final long[] translation) {
+            RandomAccessible<?> current = image;
+            while (true) {
+                if (current instanceof IntervalView) {
+                    current = ((IntervalView<?>) current).getSource();
+                } else if (current instanceof MixedTransformView) {
+                    final MixedTransform transform = ((MixedTransformView<?>) current).getTransformToSource();
+                    if (!isTranslation(transform)) return null;
+                    for (int d = 0; d < translation.length; d++) {
+                        translation[d] += transform.getTranslation(d);
+                    }
+                    current = ((MixedTransformView<?>) current).getSource();
+                } else {
+                    return current;
+                }
+            }
+        }
+
+        private static boolean isTranslation(final MixedTransform transform) {
+            if (transform.numSourceDimensions() != transform.numTargetDimensions()) return false;
+            for (int d = 0; d < transform.numTargetDimensions(); d++) {
+                if ((transform.getComponentZero(d)) || (transform.getComponentMapping(d) != d) || (transform.getComponentInversion(d))) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.util.Intervals;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary framing of the messages exchanged between a {@link CLIJxRemoteFilterOp} and {@link TileWorker} processes.
+ * <p>
+ * A frame starts with a magic number, a version and a frame type. Headers are written with {@link DataOutputStream}
+ * (big-endian), pixels are written as a single block of raw bytes in little-endian order, which is the layout of
+ * OpenCL buffers, so that a worker uploads and downloads them without any per-pixel conversion.
+ * <p>
+ * Supported pixel types are the ones supported by CLIJ: 8 bit, 16 bit and float.
+ * <p>
+ * Lengths read from a frame are checked before anything is allocated: the pixels can't be larger than the
+ * dimensions of the tile, and error messages are truncated to {@link TileProtocol#MAX_ERROR_LENGTH} bytes.
+ */
+public class TileProtocol {
+
+    public static final int MAGIC = 0x434C4A58; // "CLJX"
+    public static final byte VERSION = 2;
+    public static final int MAX_ERROR_LENGTH = 16 * 1024; // In bytes, longer error messages are truncated
+    public static final int MAX_DIMENSIONS = 5;
+
+    static final byte FRAME_REQUEST = 1;
+    static final byte FRAME_RESPONSE = 2;
+
+    /**
+     * A padded tile to process
+     */
+    public static class TileRequest {
+        public long id;
+        public String processorClass;
+        public Map<String, String> parameters = new LinkedHashMap<>();
+        public long[] dimensions;
+        public NativeTypeEnum inputType;
+        public byte[] input;
+        public NativeTypeEnum outputType;
+        public boolean bitPacked;
+    }
+
+    /**
+     * The processed tile, or the error which occurred while processing it
+     */
+    public static class TileResponse {
+        public long id;
+        public String error; // null if the tile was processed successfully
+        public long[] dimensions;
+        public NativeTypeEnum type;
+        public boolean bitPacked;
+        public byte[] data;
+    }
+
+    public static void write(final DataOutputStream out, final TileRequest request) throws IOException {
+        writeHeader(out, FRAME_REQUEST);
+        out.writeLong(request.id);
+        out.writeUTF(request.processorClass);
+        out.writeInt(request.parameters.size());
+        for (Map.Entry<String, String> parameter : request.parameters.entrySet()) {
+            out.writeUTF(parameter.getKey());
+            out.writeUTF(parameter.getValue());
+        }
+        writeDimensions(out, request.dimensions);
+        out.writeByte(typeCode(request.inputType));
+        out.writeByte(typeCode(request.outputType));
+        out.writeBoolean(request.bitPacked);
+        writeBytes(out, request.input);
+        out.flush();
+    }
+
+    public static TileRequest readRequest(final DataInputStream in) throws IOException {
+        readHeader(in, FRAME_REQUEST);
+        final TileRequest request = new TileRequest();
+        request.id = in.readLong();
+        request.processorClass = in.readUTF();
+        final int nParameters = in.readInt();
+        for (int i = 0; i < nParameters; i++) {
+            request.parameters.put(in.readUTF(), in.readUTF());
+        }
+        request.dimensions = readDimensions(in);
+        request.inputType = type(in.readByte());
+        request.outputType = type(in.readByte());
+        request.bitPacked = in.readBoolean();
+        request.input = readBytes(in, sizeInBytes(request.dimensions, request.inputType));
+        return request;
+    }
+
+    public static void write(final DataOutputStream out, final TileResponse response) throws IOException {
+        writeHeader(out, FRAME_RESPONSE);
+        out.writeLong(response.id);
+        out.writeBoolean(response.error != null);
+        if (response.error != null) {
+            byte[] error = response.error.getBytes(StandardCharsets.UTF_8);
+            writeBytes(out, error.length > MAX_ERROR_LENGTH ? Arrays.copyOf(error, MAX_ERROR_LENGTH) : error);
+        } else {
+            writeDimensions(out, response.dimensions);
+            out.writeByte(typeCode(response.type));
+            out.writeBoolean(response.bitPacked);
+            writeBytes(out, response.data);
+        }
+        out.flush();
+    }
+
+    public static TileResponse readResponse(final DataInputStream in) throws IOException {
+        readHeader(in, FRAME_RESPONSE);
+        final TileResponse response = new TileResponse();
+        response.id = in.readLong();
+        if (in.readBoolean()) {
+            response.error = new String(readBytes(in, MAX_ERROR_LENGTH), StandardCharsets.UTF_8);
+        } else {
+            response.dimensions = readDimensions(in);
+            response.type = type(in.readByte());
+            response.bitPacked = in.readBoolean();
+            response.data = readBytes(in, sizeInBytes(response.dimensions, response.type));
+        }
+        return response;
+    }
+
+    /**
+     * @param image an image of one of the supported types
+     * @return the pixels of the image, little-endian
+     */
+    public static byte[] toBytes(final ArrayImg<?, ?> image) {
+        final Object array = ((ArrayDataAccess<?>) image.update(null)).getCurrentStorageArray();
+        if (array instanceof byte[]) {
+            return ((byte[]) array).clone();
+        }
+        final int size = (int) Intervals.numElements(image);
+        if (array instanceof short[]) {
+            final ByteBuffer buffer = ByteBuffer.allocate(size * 2).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asShortBuffer().put((short[]) array);
+            return buffer.array();
+        }
+        if (array instanceof float[]) {
+            final ByteBuffer buffer = ByteBuffer.allocate(size * 4).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asFloatBuffer().put((float[]) array);
+            return buffer.array();
+        }
+        throw new IllegalArgumentException("Unsupported image type " + image.firstElement().getClass().getSimpleName());
+    }
+
+    /**
+     * @param bytes pixels, little-endian
+     * @param type type of the pixels
+     * @param dimensions dimensions of the image
+     * @return an image wrapping the pixels
+     */
+    public static ArrayImg<?, ?> toImg(final byte[] bytes, final NativeTypeEnum type, final long[] dimensions) {
+        final int size = (int) Intervals.numElements(dimensions);
+        switch (type) {
+            case UnsignedByte:
+                return ArrayImgs.unsignedBytes(bytes, dimensions);
+            case UnsignedShort: {
+                final short[] pixels = new short[size];
+                ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(pixels);
+                return ArrayImgs.unsignedShorts(pixels, dimensions);
+            }
+            case Float: {
+                final float[] pixels = new float[size];
+                ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(pixels);
+                return ArrayImgs.floats(pixels, dimensions);
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported type " + type);
+        }
+    }
+
+    private static void writeHeader(final DataOutputStream out, final byte frameType) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(frameType);
+    }
+
+    private static void readHeader(final DataInputStream in, final byte frameType) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Invalid frame: wrong magic number");
+        final byte version = in.readByte();
+        if (version != VERSION) throw new IOException("Unsupported protocol version " + version);
+        final byte type = in.readByte();
+        if (type != frameType) throw new IOException("Unexpected frame type " + type);
+    }
+
+    private static void writeDimensions(final DataOutputStream out, final long[] dimensions) throws IOException {
+        out.writeByte(dimensions.length);
+        for (long d : dimensions) {
+            out.writeLong(d);
+        }
+    }
+
+    private static long[] readDimensions(final DataInputStream in) throws IOException {
+        final byte n = in.readByte();
+        if ((n < 1) || (n > MAX_DIMENSIONS)) throw new IOException("Invalid number of dimensions " + n);
+        final long[] dimensions = new long[n];
+        for (int d = 0; d < dimensions.length; d++) {
+            dimensions[d] = in.readLong();
+            if (dimensions[d] < 1) throw new IOException("Invalid dimensions " + Arrays.toString(dimensions));
+        }
+        return dimensions;
+    }
+
+    /**
+     * @return the size of the pixels of a tile, which bounds the size of its bit-packed pixels too
+     */
+    private static int sizeInBytes(final long[] dimensions, final NativeTypeEnum type) throws IOException {
+        long size = type == NativeTypeEnum.UnsignedByte ? 1 : type == NativeTypeEnum.UnsignedShort ? 2 : 4;
+        for (long d : dimensions) {
+            size *= d;
+            if (size > Integer.MAX_VALUE - 8) throw new IOException("Tile too large " + Arrays.toString(dimensions));
+        }
+        return (int) size;
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(final DataInputStream in, final int maxLength) throws IOException {
+        final int length = in.readInt();
+        if ((length < 0) || (length > maxLength)) throw new IOException("Invalid length " + length + ", at most " + maxLength + " bytes expected");
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte typeCode(final NativeTypeEnum type) {
+        switch (type) {
+            case UnsignedByte: return 0;
+            case UnsignedShort: return 1;
+            case Float: return 2;
+            default: throw new IllegalArgumentException("Unsupported type " + type);
+        }
+    }
+
+    private static NativeTypeEnum type(final byte code) throws IOException {
+        switch (code) {
+            case 0: return NativeTypeEnum.UnsignedByte;
+            case 1: return NativeTypeEnum.UnsignedShort;
+            case 2: return NativeTypeEnum.Float;
+            default: throw new IOException("Unknown type code " + code);
+        }
+    }
+}
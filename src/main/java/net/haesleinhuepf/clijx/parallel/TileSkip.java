@@ -0,0 +1,95 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Decides, on the CPU, whether a tile has to be processed by {@link CLIJxFilterOp}, or whether its cell can be filled
+ * with a constant value without touching the GPU, for instance because the tile is background only.
+ * <p>
+ * The statistics computed by the predefined skips are evaluated on a subsampled tile, to be cheap compared to
+ * processing the tile. A tile is then skipped if its subsampled pixels are background, even if a pixel in
+ * between is not: the subsampling has to be fine enough for the smallest structure of interest.
+ *
+ * @param <S> source type
+ */
+@FunctionalInterface
+public interface TileSkip<S> {
+
+    /**
+     * @param tile the padded input tile
+     * @return null if the tile has to be processed, otherwise the value its cell is filled with
+     */
+    Double fillValue(RandomAccessibleInterval<S> tile);
+
+    /**
+     * Skips tiles with all (subsampled) pixels below a threshold
+     * @param threshold a tile is processed if one of its pixels is at or above this value
+     * @param fillValue value of the cell of a skipped tile, the output of the processor for background
+     * @param subsampling step between the pixels which are tested, along each dimension
+     * @return the skip
+     */
+    static <S extends RealType<S>> TileSkip<S> maxBelow(final double threshold, final double fillValue, final int subsampling) {
+        return tile -> {
+            for (S pixel : Views.flatIterable(Views.subsample(Views.zeroMin(tile), subsampling))) {
+                if (pixel.getRealDouble() >= threshold) return null;
+            }
+            return fillValue;
+        };
+    }
+
+    /**
+     * Skips tiles with constant (subsampled) pixels. As most filters give a constant output for a constant
+     * input, the value of the cell is computed from the value of the tile.
+     * @param tolerance a tile is processed if the difference between its minimum and maximum is larger than this value
+     * @param subsampling step between the pixels which are tested, along each dimension
+     * @param outputForConstantInput output of the processor for a given constant input value
+     * @return the skip
+     */
+    static <S extends RealType<S>> TileSkip<S> constant(final double tolerance, final int subsampling, final DoubleUnaryOperator outputForConstantInput) {
+        return tile -> {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (S pixel : Views.flatIterable(Views.subsample(Views.zeroMin(tile), subsampling))) {
+                final double value = pixel.getRealDouble();
+                if (value < min) min = value;
+                if (value > max) max = value;
+                if (max - min > tolerance) return null;
+            }
+            return outputForConstantInput.applyAsDouble((min + max) / 2);
+        };
+    }
+
+    /**
+     * Skips tiles which do not overlap the foreground of a mask, typically computed beforehand at a low resolution
+     * @param mask foreground mask, covering the source image scaled down by the given factors, with the same origin
+     * @param scale size, along each dimension, of the source region covered by a mask pixel
+     * @param fillValue value of the cell of a skipped tile, the output of the processor for background
+     * @return the skip
+     */
+    static <S, B extends BooleanType<B>> TileSkip<S> mask(final RandomAccessibleInterval<B> mask, final long[] scale, final double fillValue) {
+        return tile -> {
+            final long[] min = new long[mask.numDimensions()];
+            final long[] max = new long[mask.numDimensions()];
+            for (int d = 0; d < min.length; d++) {
+                min[d] = Math.floorDiv(tile.min(d), scale[d]);
+                max[d] = Math.floorDiv(tile.max(d), scale[d]);
+            }
+            final Interval region = Intervals.intersect(mask, new FinalInterval(min, max));
+            if (Intervals.isEmpty(region)) return fillValue;
+            final Cursor<B> cursor = Views.interval(mask, region).cursor();
+            while (cursor.hasNext()) {
+                if (cursor.next().get()) return null;
+            }
+            return fillValue;
+        };
+    }
+}
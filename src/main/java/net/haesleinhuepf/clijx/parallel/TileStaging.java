@@ -0,0 +1,257 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CPU stage of {@link CLIJxFilterOp}: padded input tiles are materialized (their source evaluated, which can be
+ * expensive for interpolated or transformed views) ahead of the cells being requested, on a pool of CPU threads of
+ * its own, so that the GPU stage only has to upload a primitive array.
+ * <p>
+ * A producer, typically the prefetcher of a {@link CellTraversal} (see {@link CLIJxFilterOp#stageAhead()}), stages the
+ * tiles of the upcoming cells with {@link #stageAhead(RandomAccessibleInterval)}. At most maxStagedTiles tiles are
+ * staged ahead and not yet taken: the producer blocks beyond that, which bounds the memory used by the staged tiles
+ * when the GPUs are slower than the CPUs. The op {@link #take(RandomAccessibleInterval)}s the tile of a cell before
+ * acquiring a GPU, waiting for it if it is still being materialized, or materializing it itself if it was not staged
+ * ahead.
+ * <p>
+ * A tile staged ahead which is never taken (its cell was already cached, or skipped) would hold its place forever: if
+ * the producer waits for a place longer than {@link #setMaxWaitMs(long)}, the oldest tile staged ahead is dropped.
+ * <p>
+ * A single staging can be shared by several ops, to size the CPU work independently of the number of threads
+ * requesting cells.
+ */
+public class TileStaging {
+
+    /**
+     * A materialized padded tile, ready to be uploaded
+     */
+    public static class StagedTile {
+        final private ArrayImg<?, ?> img;
+        final private NativeTypeEnum type;
+
+        StagedTile(final ArrayImg<?, ?> img, final NativeTypeEnum type) {
+            this.img = img;
+            this.type = type;
+        }
+
+        /**
+         * @return the dimensions of the padded tile
+         */
+        public long[] getDimensions() {
+            return Intervals.dimensionsAsLongArray(img);
+        }
+
+        /**
+         * @return the materialized tile, zero-min
+         */
+        public ArrayImg<?, ?> getImg() {
+            return img;
+        }
+
+        /**
+         * Copies the tile in a new GPU buffer
+         * @param clijx instance the buffer is created on
+         * @return the buffer, to be closed by the caller
+         */
+        public ClearCLBuffer upload(final CLIJx clijx) {
+            final ClearCLBuffer buffer = clijx.create(getDimensions(), type);
+            final Object array = ((ArrayDataAccess<?>) img.update(null)).getCurrentStorageArray();
+            final Buffer data;
+            switch (type) {
+                case UnsignedByte: data = ByteBuffer.wrap((byte[]) array); break;
+                case UnsignedShort: data = ShortBuffer.wrap((short[]) array); break;
+                default: data = FloatBuffer.wrap((float[]) array);
+            }
+            buffer.readFrom(data, true);
+            return buffer;
+        }
+    }
+
+    final private ExecutorService threads;
+    final private int maxStagedTiles;
+    final private Map<List<Long>, CompletableFuture<StagedTile>> ahead = new LinkedHashMap<>(); // guarded by itself, oldest first
+    private volatile long maxWaitMs = 10000;
+
+    final private AtomicLong nTakenAhead = new AtomicLong();
+    final private AtomicLong nTakenNotAhead = new AtomicLong();
+    final private AtomicLong nDropped = new AtomicLong();
+
+    /**
+     * @param nThreads number of CPU threads materializing tiles
+     * @param maxStagedTiles number of tiles staged ahead and not yet taken at most
+     */
+    public TileStaging(final int nThreads, final int maxStagedTiles) {
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.threads = Executors.newFixedThreadPool(Math.max(1, nThreads), runnable -> {
+            Thread thread = new Thread(runnable, "CLIJx tile staging " + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxStagedTiles = Math.max(1, maxStagedTiles);
+    }
+
+    /**
+     * @param maxWaitMs time the producer waits for a place at most, before the oldest tile staged ahead is dropped.
+     *                  10 s by default.
+     */
+    public void setMaxWaitMs(final long maxWaitMs) {
+        this.maxWaitMs = Math.max(0, maxWaitMs);
+    }
+
+    /**
+     * Materializes a padded tile on the staging threads, to be taken later with {@link #take(RandomAccessibleInterval)}.
+     * Blocks while maxStagedTiles tiles are staged ahead and not yet taken, see {@link #setMaxWaitMs(long)}.
+     * @param tile the padded input tile
+     * @return false if the tile was already staged ahead, or if the calling thread was interrupted while waiting
+     */
+    public boolean stageAhead(final RandomAccessibleInterval<? extends RealType<?>> tile) {
+        final List<Long> key = keyOf(tile);
+        synchronized (ahead) {
+            if (ahead.containsKey(key)) return false;
+            final long deadline = System.currentTimeMillis() + maxWaitMs;
+            while (ahead.size() >= maxStagedTiles) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    // nothing was taken for too long: the oldest tile is most likely never going to be
+                    final Iterator<CompletableFuture<StagedTile>> oldest = ahead.values().iterator();
+                    oldest.next().cancel(false);
+                    oldest.remove();
+                    nDropped.incrementAndGet();
+                    break;
+                }
+                try {
+                    ahead.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            ahead.put(key, CompletableFuture.supplyAsync(() -> materialize(tile), threads));
+            return true;
+        }
+    }
+
+    /**
+     * Gets a padded tile: the tile staged ahead if there is one, once it is materialized, or else the tile
+     * materialized on the calling thread. Either way, its place in the staging is freed.
+     * @param tile the padded input tile
+     * @return the staged tile
+     */
+    public StagedTile take(final RandomAccessibleInterval<? extends RealType<?>> tile) {
+        final CompletableFuture<StagedTile> staged = remove(tile);
+        if (staged == null) {
+            nTakenNotAhead.incrementAndGet();
+            return materialize(tile);
+        }
+        nTakenAhead.incrementAndGet();
+        try {
+            return staged.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Frees the place of a tile staged ahead which is not going to be taken, the tile of a skipped cell for instance.
+     * Has no effect if the tile is not staged ahead.
+     * @param tile the padded input tile
+     */
+    public void discard(final Interval tile) {
+        final CompletableFuture<StagedTile> staged = remove(tile);
+        if (staged != null) staged.cancel(false);
+    }
+
+    private CompletableFuture<StagedTile> remove(final Interval tile) {
+        final List<Long> key = keyOf(tile);
+        synchronized (ahead) {
+            final CompletableFuture<StagedTile> staged = ahead.remove(key);
+            if (staged != null) ahead.notifyAll();
+            return staged;
+        }
+    }
+
+    private static List<Long> keyOf(final Interval tile) {
+        final List<Long> key = new ArrayList<>();
+        for (int d = 0; d < tile.numDimensions(); d++) {
+            key.add(tile.min(d));
+            key.add(tile.max(d));
+        }
+        return key;
+    }
+
+    /**
+     * Materializes a padded tile on the calling thread, outside of any staging
+     * @param tile the padded input tile
+     * @return the staged tile
+     */
+    public static StagedTile materialize(final RandomAccessibleInterval<? extends RealType<?>> tile) {
+        final NativeTypeEnum type = CLIJxFilterOp.Util.nativeTypeOf(Views.flatIterable(tile).firstElement());
+        return new StagedTile(CLIJxFilterOp.Util.toArrayImg(tile, type), type);
+    }
+
+    /**
+     * @return number of tiles staged ahead, materialized or being materialized, and not yet taken
+     */
+    public int nStagedTiles() {
+        synchronized (ahead) {
+            return ahead.size();
+        }
+    }
+
+    public int getMaxStagedTiles() {
+        return maxStagedTiles;
+    }
+
+    /**
+     * @return number of tiles taken which were staged ahead
+     */
+    public long getNumberOfTilesTakenAhead() {
+        return nTakenAhead.get();
+    }
+
+    /**
+     * @return number of tiles taken which were not staged ahead, and were materialized by the thread taking them
+     */
+    public long getNumberOfTilesNotStagedAhead() {
+        return nTakenNotAhead.get();
+    }
+
+    /**
+     * @return number of tiles staged ahead and dropped before being taken, see {@link #setMaxWaitMs(long)}
+     */
+    public long getNumberOfDroppedTiles() {
+        return nDropped.get();
+    }
+
+    /**
+     * Stops the staging threads once the tiles being materialized are done
+     */
+    public void shutdown() {
+        threads.shutdown();
+    }
+}
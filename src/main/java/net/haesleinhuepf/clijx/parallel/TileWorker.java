@@ -0,0 +1,322 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import ij.IJ;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.parallel.TileProtocol.TileRequest;
+import net.haesleinhuepf.clijx.parallel.TileProtocol.TileResponse;
+import net.imglib2.view.Views;
+import org.scijava.command.Command;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Processes tiles sent by {@link CLIJxRemoteFilterOp} over local sockets, on its own {@link CLIJxPool}.
+ * <p>
+ * A worker is meant to run in its own JVM, started with {@link TileWorker#launch(int, String)}, and owns a subset
+ * of the devices: a driver crash or a heap blow-up in a worker does not take the main application down, and
+ * several workers can spread the work of a large multi-GPU machine across several JVMs.
+ * <p>
+ * Each connection is served by its own thread, which processes its tiles one after the other: a client opens as many
+ * connections as tiles it wants to be processed concurrently.
+ */
+public class TileWorker implements AutoCloseable {
+
+    final private CLIJxPool pool;
+    final private Function<TileRequest, TileResponse> handler;
+    final private ServerSocket serverSocket;
+    final private Set<Socket> openSockets = Collections.synchronizedSet(new HashSet<>());
+    private volatile boolean isClosed = false;
+
+    /**
+     * @param pool pool processing the tiles
+     * @param port port to listen to on the loopback interface, 0 for any free port
+     * @throws IOException if the port cannot be opened
+     */
+    public TileWorker(CLIJxPool pool, int port) throws IOException {
+        this(pool, request -> pool.run(CLIJxPool.DEFAULT_PRIORITY, clijx -> process(clijx, request)), port);
+    }
+
+    /**
+     * @param pool pool closed with this worker, can be null
+     * @param handler processes the tiles, for instance on a CLIJx instance of the pool
+     * @param port port to listen to on the loopback interface, 0 for any free port
+     * @throws IOException if the port cannot be opened
+     */
+    protected TileWorker(CLIJxPool pool, Function<TileRequest, TileResponse> handler, int port) throws IOException {
+        this.pool = pool;
+        this.handler = handler;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return the port this worker listens to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting connections in a background thread
+     */
+    public void start() {
+        Thread thread = new Thread(this::acceptConnections, "CLIJx tile worker " + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void acceptConnections() {
+        while (!isClosed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> serve(socket), "CLIJx tile worker connection " + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!isClosed) System.err.println("TileWorker: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        openSockets.add(socket);
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            while (!isClosed) {
+                TileRequest request;
+                try {
+                    request = TileProtocol.readRequest(in);
+                } catch (EOFException | SocketException e) {
+                    return; // Client gone
+                }
+                TileResponse response;
+                try {
+                    processorClassOf(request); // Anything but a tile processor is rejected before the handler runs
+                    response = handler.apply(request);
+                } catch (Throwable e) {
+                    response = new TileResponse();
+                    response.id = request.id;
+                    response.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+                }
+                TileProtocol.write(out, response);
+            }
+        } catch (IOException e) {
+            if (!isClosed) System.err.println("TileWorker: " + e.getMessage());
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    /**
+     * Resolves the processor class of a request, without initializing it: any process which can reach the port of a
+     * worker can send a request, only {@link TileProcessor}s are instantiated
+     * @param request the tile
+     * @return the processor class
+     * @throws IllegalArgumentException if the class is unknown or is not a {@link TileProcessor}
+     */
+    public static Class<? extends TileProcessor> processorClassOf(TileRequest request) {
+        final Class<?> klass;
+        try {
+            klass = Class.forName(request.processorClass, false, TileWorker.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unknown tile processor " + request.processorClass, e);
+        }
+        if (!TileProcessor.class.isAssignableFrom(klass)) {
+            throw new IllegalArgumentException(request.processorClass + " is not a tile processor");
+        }
+        return klass.asSubclass(TileProcessor.class);
+    }
+
+    /**
+     * Processes a tile on a CLIJx instance
+     * @param clijx the instance to use
+     * @param request the tile
+     * @return the processed tile
+     * @throws IllegalArgumentException if the processor class of the request is not a {@link TileProcessor}
+     */
+    public static TileResponse process(CLIJx clijx, TileRequest request) {
+        final Class<? extends TileProcessor> klass = processorClassOf(request);
+
+        final ClearCLBuffer input = CLIJxPool.trackBuffer(clijx, clijx.create(request.dimensions, request.inputType));
+        final ClearCLBuffer output = CLIJxPool.trackBuffer(clijx, clijx.create(request.dimensions, request.outputType));
+        try {
+            final ByteBuffer inputBuffer = ByteBuffer.allocateDirect(request.input.length).order(ByteOrder.LITTLE_ENDIAN);
+            inputBuffer.put(request.input);
+            inputBuffer.rewind();
+            input.readFrom(inputBuffer, true);
+
+            final TileProcessor filter = CLIJxFilterOp.Util.newTileProcessor(klass, request.parameters);
+            filter.setCLIJx(clijx);
+            filter.accept(input, output);
+
+            final TileResponse response = new TileResponse();
+            response.id = request.id;
+            response.dimensions = request.dimensions;
+            response.bitPacked = request.bitPacked;
+            if (request.bitPacked) {
+                response.type = NativeTypeEnum.UnsignedByte;
+                response.data = CLIJxFilterOp.pullBitPacked(clijx, output);
+            } else {
+                response.type = request.outputType;
+                final ByteBuffer outputBuffer = ByteBuffer.allocateDirect((int) output.getSizeInBytes()).order(ByteOrder.LITTLE_ENDIAN);
+                output.writeTo(outputBuffer, true);
+                outputBuffer.rewind();
+                response.data = new byte[outputBuffer.capacity()];
+                outputBuffer.get(response.data);
+            }
+            return response;
+        } finally {
+            CLIJxPool.closeBuffer(clijx, input);
+            CLIJxPool.closeBuffer(clijx, output);
+        }
+    }
+
+    /**
+     * Stops accepting connections, drops the open ones and shuts the pool down
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        try {
+            serverSocket.close();
+            synchronized (openSockets) {
+                for (Socket socket : openSockets) {
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("TileWorker: " + e.getMessage());
+        }
+        if (pool != null) pool.shutdown();
+    }
+
+    /**
+     * System property overriding the class path of the workers started with {@link TileWorker#launch(int, String)}
+     */
+    public static final String CLASS_PATH_PROPERTY = "clijx.tileworker.classpath";
+
+    /**
+     * Starts a worker in a new JVM, with the class path of {@link TileWorker#getDefaultClassPath()}
+     * @param port port the worker listens to on the loopback interface
+     * @param poolSpecification devices used by the worker, as in {@link CLIJPoolOptions}: device_idx:n_threads, device_idx:n_threads ...
+     * @return the worker process, its output is inherited from the current process
+     * @throws IOException if the process cannot be started
+     */
+    public static Process launch(int port, String poolSpecification) throws IOException {
+        return launch(getDefaultClassPath(), TileWorker.class, Integer.toString(port), poolSpecification);
+    }
+
+    /**
+     * Starts a class in a new JVM, with its output inherited from the current process
+     * @param classPath class path of the new JVM
+     * @param mainClass class whose main method is run
+     * @param args arguments of the main method
+     * @return the process
+     * @throws IOException if the process cannot be started
+     */
+    static Process launch(String classPath, Class<?> mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(classPath);
+        command.add(mainClass.getName());
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * The class path of a worker: the one of the {@link TileWorker#CLASS_PATH_PROPERTY} property if it is set.
+     * Otherwise, the class path of the current JVM, completed with the URLs of the class loaders of this class and the
+     * locations of the classes a worker needs. In Fiji, the plugins are not on the class path of the JVM but are
+     * loaded by the ImageJ class loader.
+     * <p>
+     * Tile processors of other plugins have to be on the class path of the workers: their location can be added
+     * with {@link TileWorker#classPathOf(Class[])}.
+     * @return the class path, entries separated with {@link File#pathSeparator}
+     */
+    public static String getDefaultClassPath() {
+        String property = System.getProperty(CLASS_PATH_PROPERTY);
+        if (property != null) return property;
+        Set<String> entries = new LinkedHashSet<>(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+        for (ClassLoader loader = TileWorker.class.getClassLoader(); loader != null; loader = loader.getParent()) {
+            if (loader instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) loader).getURLs()) {
+                    String path = toPath(url);
+                    if (path != null) entries.add(path);
+                }
+            }
+        }
+        entries.addAll(Arrays.asList(classPathOf(TileWorker.class, CLIJx.class, CLIJ.class, ClearCLBuffer.class,
+                NativeTypeEnum.class, Views.class, Command.class, IJ.class).split(File.pathSeparator)));
+        entries.remove("");
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * @param classes classes
+     * @return the jars or directories the classes are loaded from, separated with {@link File#pathSeparator}
+     */
+    public static String classPathOf(Class<?>... classes) {
+        Set<String> entries = new LinkedHashSet<>();
+        for (Class<?> klass : classes) {
+            CodeSource source = klass.getProtectionDomain().getCodeSource();
+            String path = source == null ? null : toPath(source.getLocation());
+            if (path != null) entries.add(path);
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static String toPath(URL url) {
+        if ((url == null) || (!"file".equals(url.getProtocol()))) return null;
+        try {
+            return new File(url.toURI()).getPath();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs a worker until its process is killed
+     * @param args port, then the pool specification (device_idx:n_threads, device_idx:n_threads ...)
+     */
+    public static void main(String... args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: TileWorker port device_idx:n_threads[,device_idx:n_threads...]");
+            return;
+        }
+        int[][] specs = CLIJPoolOptions.parseDeviceThreads(args[1]);
+        CLIJxPool pool = new CLIJxPool(specs[0], specs[1]);
+        TileWorker worker = new TileWorker(pool, Integer.parseInt(args[0]));
+        Runtime.getRuntime().addShutdownHook(new Thread(worker::close));
+        System.out.println("TileWorker listening on port " + worker.getPort());
+        worker.acceptConnections();
+    }
+}
@@ -0,0 +1,25 @@
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+__kernel void pack_binary(
+    IMAGE_src_TYPE  src,
+    IMAGE_dst_TYPE  dst,
+    int width
+)
+{
+  const int x = get_global_id(0);
+  const int y = get_global_id(1);
+  const int z = get_global_id(2);
+
+  // Bit i of dst[x] holds src[8 * x + i] != 0. POS_*_INSTANCE builds an int2 or an int4 position, depending on
+  // whether the image is 2D or 3D, so that the same kernel compiles for both
+  uchar bits = 0;
+  for (int i = 0; i < 8; i++) {
+    const int sx = x * 8 + i;
+    if (sx < width) {
+      if (READ_src_IMAGE(src, sampler, POS_src_INSTANCE(sx,y,z,0)).x != 0) {
+        bits = bits | (uchar)(1 << i);
+      }
+    }
+  }
+  WRITE_dst_IMAGE (dst, POS_dst_INSTANCE(x,y,z,0), CONVERT_dst_PIXEL_TYPE(bits));
+}
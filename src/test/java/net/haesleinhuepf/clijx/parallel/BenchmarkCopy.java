@@ -0,0 +1,89 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link FastCopy} with the previous, generic, implementation of
+ * {@link CLIJxFilterOp.Util#copyReal} on the copy done for each tile by {@link CLIJxFilterOp}:
+ * a 128^3 tile padded by 8 pixels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchmarkCopy {
+
+    final long[] padding = new long[]{8, 8, 8};
+
+    ArrayImg<FloatType, FloatArray> floatResult;
+    ArrayImg<UnsignedByteType, ByteArray> byteResult;
+    ArrayImg<FloatType, FloatArray> floatCell;
+    ArrayImg<UnsignedByteType, ByteArray> byteCell;
+
+    @Setup
+    public void setup() {
+        floatResult = ArrayImgs.floats(144, 144, 144);
+        byteResult = ArrayImgs.unsignedBytes(144, 144, 144);
+        floatCell = ArrayImgs.floats(128, 128, 128);
+        byteCell = ArrayImgs.unsignedBytes(128, 128, 128);
+        TestFastCopy.fillRandom(floatResult);
+        TestFastCopy.fillRandom(byteResult);
+    }
+
+    @Benchmark
+    public void genericFloatToFloat() {
+        TestFastCopy.genericCopyReal(floatResult, Views.translate(Views.zeroMin(floatCell), padding));
+    }
+
+    @Benchmark
+    public void fastFloatToFloat() {
+        FastCopy.copyReal(floatResult, Views.translate(Views.zeroMin(floatCell), padding));
+    }
+
+    @Benchmark
+    public void genericByteToByte() {
+        TestFastCopy.genericCopyReal(byteResult, Views.translate(Views.zeroMin(byteCell), padding));
+    }
+
+    @Benchmark
+    public void fastByteToByte() {
+        FastCopy.copyReal(byteResult, Views.translate(Views.zeroMin(byteCell), padding));
+    }
+
+    @Benchmark
+    public void genericByteToFloat() {
+        TestFastCopy.genericCopyReal(byteResult, Views.translate(Views.zeroMin(floatCell), padding));
+    }
+
+    @Benchmark
+    public void fastByteToFloat() {
+        FastCopy.copyReal(byteResult, Views.translate(Views.zeroMin(floatCell), padding));
+    }
+
+    public static void main(String... args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BenchmarkCopy.class.getSimpleName()).build()).run();
+    }
+}
@@ -31,6 +31,7 @@ import net.imglib2.type.numeric.integer.GenericByteType;
 import net.imglib2.type.numeric.integer.GenericIntType;
 import net.imglib2.type.numeric.integer.GenericLongType;
 import net.imglib2.type.numeric.integer.GenericShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
@@ -93,14 +94,17 @@ public class DemoDummyFiltering {
         int margin = 20;
         int tile_size = 256;
 
-        final CLIJxFilterOp<FloatType, FloatType> clijxFilter =
-                new CLIJxFilterOp<>(Views.extendMirrorSingle(new_img), pool, DummyFilter.class, margin, margin, margin);
+        // DummyFilter produces a binary mask: it is computed as 8 bit and bit-packed on the GPU before being downloaded
+        final CLIJxFilterOp<UnsignedByteType, FloatType> clijxFilter =
+                new CLIJxFilterOp<>(Views.extendMirrorSingle(new_img), pool, DummyFilter.class, new UnsignedByteType(), true, margin, margin, margin);
+        // The interpolated, transformed source is evaluated ahead on CPU threads of its own, see the traversal below
+        clijxFilter.setStaging(new TileStaging(Runtime.getRuntime().availableProcessors(), 2 * pool.size()));
 
         // Make a result image lazily
-        CachedCellImg<FloatType, ?> filtered = Lazy.generate(
+        CachedCellImg<UnsignedByteType, ?> filtered = Lazy.generate(
                 new_img,
                 new int[]{tile_size, tile_size, tile_size},
-                new FloatType(),
+                new UnsignedByteType(),
                 AccessFlags.setOf(AccessFlags.VOLATILE),
                 clijxFilter);
 
@@ -108,7 +112,7 @@ public class DemoDummyFiltering {
         boolean interactive = false;
 
         if (interactive) {
-            BdvStackSource<Volatile<FloatType>> gpuProcessed =
+            BdvStackSource<Volatile<UnsignedByteType>> gpuProcessed =
                     BdvFunctions.show(
                             VolatileViews.wrapAsVolatile(
                                     filtered,
@@ -129,19 +133,37 @@ public class DemoDummyFiltering {
 
         } else {
 
-            Instant start = Instant.now();
-
-            filtered.getCells()
-                    .parallelStream()// Parallel magic, comment to go serial
-                    .forEach(Cell::getData);
-
-            // Nico: on my laptop with a A500 and an Iris Xe card:
-            //    - parallel: 34s
-            //    - serial: 72s
-
-            Duration processingDuration = Duration.between(start, Instant.now());
-            System.out.println("Filtering duration = "+processingDuration.toMillis()+" ms");
-            ImageJFunctions.show(filtered,"filtered");
+            // Compares the traversal orders. The source is not a cached image, so that the hit rate of its cache can not
+            // be measured: it is modelled, replaying the padded cells on a least recently used cache of 64 source blocks.
+            CachedCellImg<UnsignedByteType, ?> lastFiltered = filtered;
+            for (CellTraversal.Order order : CellTraversal.Order.values()) {
+                Instant start = Instant.now();
+
+                // A new lazy image for each order, so that none of its cells is cached yet
+                lastFiltered = Lazy.generate(
+                        new_img,
+                        new int[]{tile_size, tile_size, tile_size},
+                        new UnsignedByteType(),
+                        AccessFlags.setOf(AccessFlags.VOLATILE),
+                        clijxFilter);
+                final CachedCellImg<UnsignedByteType, ?> image = lastFiltered;
+
+                // With a space-filling curve, tiles processed one after the other share most of their source
+                CellTraversal traversal = new CellTraversal(image.getCellGrid(), order);
+                // Stages the tiles of the upcoming cells while the GPUs process the current ones
+                traversal.setPrefetch(2 * pool.size(), clijxFilter.stageAhead());
+                traversal.setSourceCache(new int[]{tile_size, tile_size, tile_size}, new long[]{margin, margin, margin}, 64);
+                CellTraversal.Stats stats = traversal.process(pool.size() * 2, cell -> Views.interval(image, cell).firstElement());
+                System.out.println(stats); // throughput and modelled source cache hit rate of this order
+
+                // Nico: on my laptop with a A500 and an Iris Xe card:
+                //    - parallel: 34s
+                //    - serial: 72s
+
+                Duration processingDuration = Duration.between(start, Instant.now());
+                System.out.println(order + ": filtering duration = "+processingDuration.toMillis()+" ms");
+            }
+            ImageJFunctions.show(lastFiltered,"filtered");
         }
 
     }
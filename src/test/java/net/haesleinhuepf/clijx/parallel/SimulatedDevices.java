@@ -0,0 +1,274 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulated devices for a {@link ContextPool}, to test and benchmark the scheduling of the pool without any GPU.
+ * <p>
+ * Each device has a startup time, a per-tile latency with jitter, a memory limit and a failure rate. Random numbers
+ * are drawn from generators seeded per context, from the seed, the device index and the ordinal of the context on its
+ * device, so that the n-th context of a device always sees the same sequence of latencies and failures for a given
+ * seed, whatever the order in which contexts of different devices are created. The simulation also checks the contract of the pool: a context is never used by two
+ * threads at a time, never used once closed, and never closed twice.
+ */
+public class SimulatedDevices implements ContextPool.Factory<SimulatedDevices.Context> {
+
+    /**
+     * Configuration of a simulated device
+     */
+    public static class Device {
+        final String name;
+        long startupMs = 0;
+        long latencyMs = 1;
+        long jitterMs = 0;
+        long memoryInBytes = Long.MAX_VALUE;
+        double failureRate = 0;
+        CountDownLatch startupGate = null;
+
+        public Device(String name) {
+            this.name = name;
+        }
+
+        public Device startup(long startupMs) {
+            this.startupMs = startupMs;
+            return this;
+        }
+
+        public Device latency(long latencyMs, long jitterMs) {
+            this.latencyMs = latencyMs;
+            this.jitterMs = jitterMs;
+            return this;
+        }
+
+        public Device memory(long memoryInBytes) {
+            this.memoryInBytes = memoryInBytes;
+            return this;
+        }
+
+        public Device failureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /**
+         * @param startupGate the creation of a context waits until this latch is released, so that tests can
+         *                    control the startup without relying on timing
+         */
+        public Device startupGate(CountDownLatch startupGate) {
+            this.startupGate = startupGate;
+            return this;
+        }
+    }
+
+    /**
+     * Thrown by a simulated context to inject a failure
+     */
+    public static class SimulatedFailure extends RuntimeException {
+        SimulatedFailure(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A context on a simulated device
+     */
+    public class Context {
+        final int deviceIndex;
+        final int id;
+        final int ordinal; // Index of the context among the contexts of its device, in order of creation
+        final private Random random;
+        final private AtomicBoolean inUse = new AtomicBoolean(false);
+        final private AtomicInteger nCloses = new AtomicInteger(0);
+        final private AtomicLong tileMemory = new AtomicLong(0); // Memory of the tile being processed
+
+        Context(int deviceIndex, int id, int ordinal) {
+            this.deviceIndex = deviceIndex;
+            this.id = id;
+            this.ordinal = ordinal;
+            this.random = new Random((seed * 31 + deviceIndex) * 31 + ordinal);
+        }
+
+        /**
+         * Draws the latency of the next tile without processing it, for simulations driven by a virtual clock
+         * @return latency, in ms
+         */
+        public long nextLatency() {
+            synchronized (random) {
+                return drawLatency(devices[deviceIndex]);
+            }
+        }
+
+        private long drawLatency(Device device) {
+            return device.latencyMs + (device.jitterMs > 0 ? (long) (random.nextDouble() * device.jitterMs) : 0);
+        }
+
+        /**
+         * Processes a tile: allocates its memory on the device, waits for the latency of the device and frees the memory
+         * @param bytes memory needed by the tile
+         * @return time spent, in ms
+         * @throws SimulatedFailure on memory exhaustion or on an injected failure
+         */
+        public long process(long bytes) {
+            if (nCloses.get() > 0) {
+                nViolations.incrementAndGet();
+                throw new IllegalStateException(this + " is used after being closed");
+            }
+            if (!inUse.compareAndSet(false, true)) {
+                nViolations.incrementAndGet();
+                throw new IllegalStateException(this + " is used by two threads at a time");
+            }
+            final Device device = devices[deviceIndex];
+            final AtomicLong used = usedMemory[deviceIndex];
+            try {
+                final long latency;
+                final boolean fails;
+                synchronized (random) {
+                    latency = drawLatency(device);
+                    fails = random.nextDouble() < device.failureRate;
+                }
+                if (used.addAndGet(bytes) > device.memoryInBytes) {
+                    used.addAndGet(-bytes);
+                    nFailures.incrementAndGet();
+                    throw new SimulatedFailure(device.name + ": out of device memory");
+                }
+                tileMemory.set(bytes);
+                try {
+                    sleep(latency);
+                    if (fails) {
+                        nFailures.incrementAndGet();
+                        throw new SimulatedFailure(device.name + ": injected failure");
+                    }
+                } finally {
+                    tileMemory.set(0);
+                    used.addAndGet(-bytes);
+                }
+                nTiles.incrementAndGet();
+                return latency;
+            } finally {
+                inUse.set(false);
+            }
+        }
+
+        public boolean isClosed() {
+            return nCloses.get() > 0;
+        }
+
+        @Override
+        public String toString() {
+            return devices[deviceIndex].name + " context " + id;
+        }
+    }
+
+    final private Device[] devices;
+    final private AtomicLong[] usedMemory;
+    final private long seed;
+    final private AtomicInteger contextCounter = new AtomicInteger();
+    final private AtomicInteger[] contextsPerDevice;
+    final private List<Context> contexts = new ArrayList<>();
+
+    final AtomicInteger nViolations = new AtomicInteger(); // Broken contracts: concurrent use, use or close after close
+    final AtomicInteger nFailures = new AtomicInteger(); // Injected failures and memory exhaustions
+    final AtomicLong nTiles = new AtomicLong(); // Successfully processed tiles
+
+    /**
+     * @param seed seed of the random generators of the contexts
+     * @param devices the simulated devices, the device index being the index in this array
+     */
+    public SimulatedDevices(long seed, Device... devices) {
+        this.seed = seed;
+        this.devices = devices;
+        this.usedMemory = new AtomicLong[devices.length];
+        this.contextsPerDevice = new AtomicInteger[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            usedMemory[i] = new AtomicLong();
+            contextsPerDevice[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return the device indices and one instance per device, as expected by the constructor of {@link ContextPool}
+     */
+    public int[] deviceIndices() {
+        int[] indices = new int[devices.length];
+        for (int i = 0; i < indices.length; i++) indices[i] = i;
+        return indices;
+    }
+
+    @Override
+    public Context create(int deviceIndex) {
+        if (devices[deviceIndex].startupGate != null) {
+            try {
+                devices[deviceIndex].startupGate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        sleep(devices[deviceIndex].startupMs);
+        Context context = new Context(deviceIndex, contextCounter.incrementAndGet(), contextsPerDevice[deviceIndex].getAndIncrement());
+        synchronized (contexts) {
+            contexts.add(context);
+        }
+        return context;
+    }
+
+    @Override
+    public void close(Context context) {
+        if (context.nCloses.incrementAndGet() > 1) {
+            nViolations.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String getName(Context context) {
+        return devices[context.deviceIndex].name;
+    }
+
+    @Override
+    public long getGlobalMemoryInBytes(Context context) {
+        return devices[context.deviceIndex].memoryInBytes;
+    }
+
+    @Override
+    public long getUsedMemoryInBytes(Context context) {
+        return context.tileMemory.get();
+    }
+
+    @Override
+    public boolean isDeviceFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SimulatedFailure) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return all contexts created so far, closed ones included
+     */
+    public List<Context> getContexts() {
+        synchronized (contexts) {
+            return new ArrayList<>(contexts);
+        }
+    }
+
+    /**
+     * @return number of contexts created so far which are not closed
+     */
+    public int nOpenContexts() {
+        return (int) getContexts().stream().filter(context -> !context.isClosed()).count();
+    }
+
+    static void sleep(long ms) {
+        if (ms <= 0) return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
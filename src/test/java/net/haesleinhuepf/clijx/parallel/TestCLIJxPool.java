@@ -6,6 +6,12 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.Assert;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 /**
  * These tests are ignored if no OpenCL device is present
  */
@@ -76,6 +82,56 @@ public class TestCLIJxPool {
         Assert.assertEquals("Pool still has idle instances", 0 , INSTANCE.nIdleInstances());
     }
 
+    @Ignore
+    @Test
+    public void testAddRemoveCLIJx() {
+        if (ignoreTests()) return;
+        CLIJxPool pool = new CLIJxPool(new int[]{0}, new int[]{1}); // Device 0 with one thread
+
+        pool.addCLIJx(0);
+        Assert.assertEquals("An instance was not added", 2, pool.nInstances(0));
+
+        CLIJx busy = pool.getIdleCLIJx();
+        Assert.assertEquals("Unexpected number of drained instances", 2, pool.removeCLIJx(0, 2));
+        Assert.assertEquals("The idle instance was not closed", 1, pool.nInstances());
+        Assert.assertEquals("The busy instance should be draining", 0, pool.nInstances(0));
+
+        pool.setCLIJxIdle(busy);
+        Assert.assertEquals("The busy instance was not closed once returned", 0, pool.nInstances());
+
+        pool.setNumberOfInstances(0, 2);
+        Assert.assertEquals("Instances were not added", 2, pool.nIdleInstances());
+
+        pool.shutdown();
+    }
+
+    @Ignore
+    @Test
+    public void testAcquireAsync() throws Exception {
+        if (ignoreTests()) return;
+        CLIJxPool pool = new CLIJxPool(new int[]{0}, new int[]{1}); // Device 0 with one thread
+
+        String name = pool.submit(CLIJxPool.DEFAULT_PRIORITY, CLIJx::getGPUName).get();
+        Assert.assertNotNull(name);
+        Assert.assertEquals("The instance was not released after the task", 1, pool.nIdleInstances());
+
+        CLIJx clijx = pool.getIdleCLIJx();
+        CompletableFuture<CLIJx> timedOut = pool.acquireAsync(CLIJxPool.DEFAULT_PRIORITY, 100, TimeUnit.MILLISECONDS, ForkJoinPool.commonPool());
+        try {
+            timedOut.get();
+            Assert.fail("Acquisition should have timed out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        for (int i = 0; (i < 100) && (pool.nPendingRequests() > 0); i++) {
+            Thread.sleep(10); // The request is withdrawn right after the future times out
+        }
+        Assert.assertEquals("The timed out request is still pending", 0, pool.nPendingRequests());
+        pool.setCLIJxIdle(clijx);
+
+        pool.shutdown();
+    }
+
     @Ignore
     @Test
     public void testSetInstance() {
@@ -0,0 +1,91 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clijx.parallel.implementations.GaussianBlurFilter;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * The tests running the sweep are ignored if no OpenCL device is present
+ */
+public class TestCLIJxSweepOp {
+
+    static List<Map<String, String>> sigmas(float... sigmas) {
+        List<Map<String, String>> parameterSets = new ArrayList<>();
+        for (float sigma : sigmas) {
+            parameterSets.add(Collections.singletonMap("sigma", Float.toString(sigma)));
+        }
+        return parameterSets;
+    }
+
+    @Test
+    public void testOutputInterval() {
+        CLIJxSweepOp<FloatType, FloatType> op = new CLIJxSweepOp<>(
+                Views.extendZero(ArrayImgs.floats(30, 20)), null, GaussianBlurFilter.class, sigmas(1, 2, 4), null, 5, 5);
+
+        Interval output = op.outputInterval(Intervals.createMinMax(0, 0, 29, 19));
+        Assert.assertArrayEquals(new long[]{30, 20, 3}, Intervals.dimensionsAsLongArray(output));
+        Assert.assertEquals(3, op.numParameterSets());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedDimensionality() {
+        new CLIJxSweepOp<>(Views.extendZero(ArrayImgs.floats(10, 10, 10, 10)), null, GaussianBlurFilter.class, sigmas(1), null, 2, 2, 2, 2);
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCellNotNeededIsNotProcessed() {
+        // no pool: the cell must be skipped before a GPU is asked for
+        CLIJxSweepOp<FloatType, FloatType> op = new CLIJxSweepOp<>(
+                Views.extendZero(ArrayImgs.floats(30, 20)), null, GaussianBlurFilter.class, sigmas(1, 2), null, 5, 5);
+        op.setIsNeeded(cell -> false);
+        op.accept(ArrayImgs.floats(30, 20, 2));
+    }
+
+    @Ignore
+    @Test
+    public void testSweepMatchesSingleRuns() {
+        if (CLIJ.getAvailableDeviceNames().isEmpty()) return;
+
+        CLIJxPool pool = CLIJxPool.getInstance();
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(64, 64);
+        TestFastCopy.fillRandom(source);
+
+        CLIJxSweepOp<FloatType, FloatType> sweep = new CLIJxSweepOp<>(
+                Views.extendMirrorSingle(source), pool, GaussianBlurFilter.class, sigmas(1, 2, 4), null, 8, 8);
+        ArrayImg<FloatType, FloatArray> swept = ArrayImgs.floats(64, 64, 3);
+        sweep.accept(swept);
+
+        for (int i = 0; i < 3; i++) {
+            CLIJxFilterOp<FloatType, FloatType> single = new CLIJxFilterOp<>(Views.extendMirrorSingle(source), pool, GaussianBlurFilter.class, 8, 8);
+            single.setParameter("sigma", sweep.parameterSets.get(i).get("sigma"));
+            ArrayImg<FloatType, FloatArray> expected = ArrayImgs.floats(64, 64);
+            single.accept(expected);
+
+            float[] e = expected.update(null).getCurrentStorageArray();
+            float[] s = swept.update(null).getCurrentStorageArray();
+            for (int j = 0; j < e.length; j++) {
+                Assert.assertEquals(e[j], s[i * e.length + j], 1e-5);
+            }
+        }
+
+        double[] scores = sweep.score(Intervals.createMinMax(0, 0, 63, 63), new int[]{32, 32}, (clijx, result) -> clijx.sumOfAllPixels(result));
+        Assert.assertEquals(3, scores.length);
+
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,53 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clijx.parallel.implementations.GaussianBlurFilter;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * These tests are ignored if no OpenCL device is present
+ */
+public class TestCLIJxTimeLapseProcessor {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedDimensionality() {
+        // rejected before the pool is used
+        CLIJxTimeLapseProcessor<FloatType, FloatType> processor = new CLIJxTimeLapseProcessor<>(null, GaussianBlurFilter.class, new FloatType(), 2, 2, 2, 2);
+        processor.process(ArrayImgs.floats(8, 8, 8, 8, 3), 4, (t, frame) -> Assert.fail("Frame " + t + " written"));
+    }
+
+    @Ignore
+    @Test
+    public void testAllFramesAreWritten() {
+        if (CLIJ.getAvailableDeviceNames().isEmpty()) return;
+
+        CLIJxPool pool = CLIJxPool.getInstance();
+        ArrayImg<FloatType, FloatArray> timeLapse = ArrayImgs.floats(64, 48, 10);
+        TestFastCopy.fillRandom(timeLapse);
+
+        for (CLIJxTimeLapseProcessor.Parallelism parallelism : CLIJxTimeLapseProcessor.Parallelism.values()) {
+            CLIJxTimeLapseProcessor<FloatType, FloatType> processor = new CLIJxTimeLapseProcessor<>(pool, GaussianBlurFilter.class, new FloatType(), 4, 4);
+            processor.setParallelism(parallelism);
+            processor.setMaxFramesInFlight(3);
+            processor.setParameter("sigma", "2");
+
+            Set<Long> written = new ConcurrentSkipListSet<>();
+            processor.process(timeLapse, 2, (t, frame) -> {
+                Assert.assertArrayEquals(new long[]{64, 48}, new long[]{frame.dimension(0), frame.dimension(1)});
+                Assert.assertTrue("Frame " + t + " written twice", written.add(t));
+            });
+            Assert.assertEquals(10, written.size());
+        }
+
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,168 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clijx.parallel.implementations.DummyFilter;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.Invalidate;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Tests which cells are invalidated when the source or a parameter changes
+ */
+public class TestCellInvalidation {
+
+    @Test
+    public void testSourceChanged() {
+        // 4 x 4 cells of 10 x 10 pixels, padding 2
+        RecordingCache cache = new RecordingCache();
+        CellInvalidation invalidation = new CellInvalidation(new CellGrid(new long[]{40, 40}, new int[]{10, 10}), cache, 2, 2);
+
+        invalidation.sourceChanged(Intervals.createMinMax(14, 14, 15, 15)); // Center of cell (1, 1)
+        Assert.assertEquals(set(5), cache.invalidated);
+
+        cache.invalidated.clear();
+        invalidation.sourceChanged(Intervals.createMinMax(21, 5, 21, 5)); // Within the padding of cell (1, 0)
+        Assert.assertEquals(set(1, 2), cache.invalidated);
+
+        cache.invalidated.clear();
+        invalidation.sourceChanged(Intervals.createMinMax(100, 100, 110, 110)); // Outside of the image
+        Assert.assertTrue(cache.invalidated.isEmpty());
+        Assert.assertEquals(3, invalidation.getNumberOfInvalidatedCells());
+    }
+
+    @Test
+    public void testImageWithMin() {
+        // Same as testSourceChanged, with the image translated to (100, -50)
+        RecordingCache cache = new RecordingCache();
+        CellInvalidation invalidation = new CellInvalidation(new long[]{100, -50}, new CellGrid(new long[]{40, 40}, new int[]{10, 10}), cache, 2, 2);
+
+        invalidation.sourceChanged(Intervals.createMinMax(114, -36, 115, -35)); // Center of cell (1, 1)
+        Assert.assertEquals(set(5), cache.invalidated);
+
+        cache.invalidated.clear();
+        invalidation.sourceChanged(Intervals.createMinMax(14, 14, 15, 15)); // Outside of the image
+        Assert.assertTrue(cache.invalidated.isEmpty());
+
+        RecordingCache downstreamCache = new RecordingCache();
+        invalidation.then(new CellInvalidation(new long[]{100, -50}, new CellGrid(new long[]{40, 40}, new int[]{20, 20}), downstreamCache, 0, 0));
+        invalidation.sourceChanged(Intervals.createMinMax(135, -15, 135, -15)); // Cell (3, 3), no padding downstream
+        Assert.assertEquals(set(3), downstreamCache.invalidated);
+    }
+
+    @Test
+    public void testDownstream() {
+        RecordingCache upstreamCache = new RecordingCache();
+        RecordingCache downstreamCache = new RecordingCache();
+        CellInvalidation upstream = new CellInvalidation(new CellGrid(new long[]{40, 40}, new int[]{10, 10}), upstreamCache, 0, 0);
+        upstream.then(new CellInvalidation(new CellGrid(new long[]{40, 40}, new int[]{20, 20}), downstreamCache, 1, 1));
+
+        upstream.sourceChanged(Intervals.createMinMax(5, 5, 5, 5));
+        Assert.assertEquals(set(0), upstreamCache.invalidated);
+        // Cell (0, 0) upstream covers [0, 9], padded downstream cells reading it: (0, 0) only
+        Assert.assertEquals(set(0), downstreamCache.invalidated);
+
+        downstreamCache.invalidated.clear();
+        upstream.sourceChanged(Intervals.createMinMax(15, 15, 15, 15));
+        // Cell (1, 1) upstream covers [10, 19], read by the padding of downstream cells (1, *)
+        Assert.assertEquals(set(0, 1, 2, 3), downstreamCache.invalidated);
+    }
+
+    @Test
+    public void testParameterChanged() {
+        RecordingCache cache = new RecordingCache();
+        CLIJxFilterOp<FloatType, FloatType> op = new CLIJxFilterOp<>(Views.extendZero(ArrayImgs.floats(30, 20)), null, DummyFilter.class, 3, 3);
+        CellInvalidation invalidation = new CellInvalidation(new CellGrid(new long[]{30, 20}, new int[]{10, 10}), cache, op);
+
+        invalidation.setParameter("sigma", "2");
+        Assert.assertEquals(set(0, 1, 2, 3, 4, 5), cache.invalidated);
+        Assert.assertEquals("2", op.getParameters().get("sigma"));
+
+        cache.invalidated.clear();
+        invalidation.setParameter("sigma", "2"); // Unchanged
+        Assert.assertTrue(cache.invalidated.isEmpty());
+    }
+
+    @Test
+    public void testOnlyAffectedCellsAreRecomputed() {
+        // A cached image of 4 x 4 cells of 10 x 10 pixels, each pixel being the source pixel + 1, padding 2
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(40, 40);
+        CellGrid grid = new CellGrid(new long[]{40, 40}, new int[]{10, 10});
+        Map<Long, AtomicInteger> nLoads = new ConcurrentHashMap<>();
+        CellLoader<FloatType> loader = cell -> {
+            long[] position = new long[2];
+            for (int d = 0; d < 2; d++) position[d] = cell.min(d) / 10;
+            nLoads.computeIfAbsent(grid.getCellGridIndexFlat(position), key -> new AtomicInteger()).incrementAndGet();
+            Cursor<FloatType> pixel = Views.flatIterable(cell).cursor();
+            RandomAccess<FloatType> input = source.randomAccess();
+            while (pixel.hasNext()) {
+                pixel.fwd();
+                input.setPosition(pixel);
+                pixel.get().set(input.get().get() + 1);
+            }
+        };
+        Cache<Long, Cell<FloatArray>> cache = new SoftRefLoaderCache<Long, Cell<FloatArray>>()
+                .withLoader(LoadedCellCacheLoader.get(grid, loader, new FloatType(), AccessFlags.setOf()));
+        CachedCellImg<FloatType, FloatArray> img = new CachedCellImg<>(grid, new FloatType(), cache, new FloatArray(0));
+        CellInvalidation invalidation = new CellInvalidation(img.getCellGrid(), img.getCache(), 2, 2);
+
+        for (FloatType pixel : img) Assert.assertEquals(1, pixel.get(), 0);
+        Assert.assertEquals(16, nLoads.size());
+
+        // Edit the center of cell (1, 1): only this cell is loaded again, with the new content
+        source.randomAccess().setPositionAndGet(15, 15).set(41);
+        invalidation.sourceChanged(Intervals.createMinMax(15, 15, 15, 15));
+        for (FloatType pixel : img) pixel.get();
+        Assert.assertEquals(42, img.randomAccess().setPositionAndGet(15, 15).get(), 0);
+        for (Map.Entry<Long, AtomicInteger> cell : nLoads.entrySet()) {
+            Assert.assertEquals("cell " + cell.getKey(), cell.getKey() == 5 ? 2 : 1, cell.getValue().get());
+        }
+    }
+
+    static Set<Long> set(long... keys) {
+        Set<Long> set = new TreeSet<>();
+        for (long key : keys) set.add(key);
+        return set;
+    }
+
+    static class RecordingCache implements Invalidate<Long> {
+
+        final Set<Long> invalidated = new TreeSet<>();
+
+        @Override
+        public void invalidate(Long key) {
+            invalidated.add(key);
+        }
+
+        @Override
+        public void invalidateIf(long parallelismThreshold, Predicate<Long> condition) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void invalidateAll(long parallelismThreshold) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
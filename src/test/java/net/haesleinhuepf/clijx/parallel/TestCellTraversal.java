@@ -0,0 +1,132 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clijx.parallel.CellTraversal.Order;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.position.FunctionRandomAccessible;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the traversal orders of a cell grid, which run without any OpenCL device
+ */
+public class TestCellTraversal {
+
+    @Test
+    public void testOrdersArePermutations() {
+        CellGrid grid = new CellGrid(new long[]{100, 60, 140}, new int[]{20, 20, 20}); // 5 x 3 x 7 cells
+        for (Order order : Order.values()) {
+            long[] indices = CellTraversal.order(grid, order);
+            long[] sorted = indices.clone();
+            Arrays.sort(sorted);
+            for (int i = 0; i < sorted.length; i++) {
+                Assert.assertEquals(order.toString(), i, sorted[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testHilbertVisitsNeighbours() {
+        for (long[] dimensions : new long[][]{{8, 8}, {4, 4, 4}}) {
+            int[] cellSize = new int[dimensions.length];
+            Arrays.fill(cellSize, 1);
+            CellGrid grid = new CellGrid(dimensions, cellSize);
+            long[] indices = CellTraversal.order(grid, Order.HILBERT);
+            long[] previous = new long[dimensions.length];
+            long[] position = new long[dimensions.length];
+            grid.getCellGridPositionFlat(indices[0], previous);
+            for (int i = 1; i < indices.length; i++) {
+                grid.getCellGridPositionFlat(indices[i], position);
+                long distance = 0;
+                for (int d = 0; d < position.length; d++) distance += Math.abs(position[d] - previous[d]);
+                Assert.assertEquals(1, distance);
+                System.arraycopy(position, 0, previous, 0, position.length);
+            }
+        }
+    }
+
+    @Test
+    public void testMortonVisitsBlocks() {
+        CellGrid grid = new CellGrid(new long[]{4, 4, 4}, new int[]{1, 1, 1});
+        long[] indices = CellTraversal.order(grid, Order.MORTON);
+        Set<Long> first = new HashSet<>();
+        for (int i = 0; i < 8; i++) first.add(indices[i]);
+        // The first 8 cells are the 2 x 2 x 2 corner block
+        Assert.assertEquals(new HashSet<>(Arrays.asList(0L, 1L, 4L, 5L, 16L, 17L, 20L, 21L)), first);
+    }
+
+    @Test
+    public void testSpaceFillingCurvesHitTheSourceCache() {
+        CellGrid grid = new CellGrid(new long[]{512, 512, 512}, new int[]{32, 32, 32}); // 16 x 16 x 16 cells
+        double[] hitRates = new double[Order.values().length];
+        for (Order order : Order.values()) {
+            CellTraversal traversal = new CellTraversal(grid, order);
+            traversal.setSourceCache(new int[]{32, 32, 32}, new long[]{4, 4, 4}, 64);
+            CellTraversal.Stats stats = traversal.process(1, cell -> {});
+            Assert.assertEquals(4096, stats.getNumberOfCells());
+            hitRates[order.ordinal()] = stats.getSourceCacheHitRate();
+        }
+        Assert.assertTrue(Arrays.toString(hitRates), hitRates[Order.MORTON.ordinal()] > hitRates[Order.ROW_MAJOR.ordinal()]);
+        Assert.assertTrue(Arrays.toString(hitRates), hitRates[Order.HILBERT.ordinal()] > hitRates[Order.ROW_MAJOR.ordinal()]);
+    }
+
+    @Test
+    public void testParallelProcessingWithPrefetch() {
+        CellGrid grid = new CellGrid(new long[]{256, 256}, new int[]{16, 16});
+        CellTraversal traversal = new CellTraversal(grid, Order.HILBERT);
+        Set<String> prefetched = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        traversal.setPrefetch(8, cell -> prefetched.add(Intervals.toString(cell)));
+
+        Set<String> processed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        AtomicInteger nCalls = new AtomicInteger();
+        CellTraversal.Stats stats = traversal.process(4, cell -> {
+            nCalls.incrementAndGet();
+            processed.add(Intervals.toString(cell));
+            SimulatedDevices.sleep(1);
+        });
+
+        Assert.assertEquals(256, nCalls.get());
+        Assert.assertEquals(256, processed.size());
+        Assert.assertTrue(stats.getNumberOfPrefetchedCells() > 0);
+        Assert.assertTrue(processed.containsAll(prefetched));
+        Assert.assertTrue(Double.isNaN(stats.getSourceCacheHitRate()));
+    }
+
+    @Test
+    public void testFailureStopsTheTraversal() {
+        CellGrid grid = new CellGrid(new long[]{64, 64}, new int[]{8, 8});
+        CellTraversal traversal = new CellTraversal(grid, Order.MORTON);
+        AtomicInteger nCalls = new AtomicInteger();
+        try {
+            traversal.process(2, cell -> {
+                if (nCalls.incrementAndGet() == 10) throw new IllegalStateException("Tile failed");
+            });
+            Assert.fail("The failure of a cell should be thrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        Assert.assertTrue(nCalls.get() < 64);
+    }
+
+    @Test
+    public void testWarmReadsOnePixelPerBlock() {
+        AtomicInteger nReads = new AtomicInteger();
+        RandomAccessible<FloatType> source = new FunctionRandomAccessible<>(2, (position, value) -> {
+            nReads.incrementAndGet();
+            value.set(0);
+        }, FloatType::new);
+        Interval cell = Intervals.createMinMax(32, 32, 63, 63);
+        CellTraversal.warm(source, new long[]{4, 4}, new int[]{16, 16}).accept(cell);
+        Assert.assertEquals(16, nReads.get()); // 28, 44, 60 and 67 along each axis
+    }
+}
@@ -0,0 +1,623 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clijx.parallel.SimulatedDevices.Context;
+import net.haesleinhuepf.clijx.parallel.SimulatedDevices.Device;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress tests of the scheduling of {@link ContextPool} on {@link SimulatedDevices}, which run without any GPU
+ */
+public class TestContextPool {
+
+    static ContextPool<Context> createPool(SimulatedDevices devices, int instancesPerDevice, ContextPool.Startup startup) {
+        int[] indices = devices.deviceIndices();
+        int[] instances = new int[indices.length];
+        Arrays.fill(instances, instancesPerDevice);
+        return new ContextPool<>(devices, indices, instances, startup);
+    }
+
+    @Test
+    public void testConcurrentAcquireRelease() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42,
+                new Device("fast").latency(1, 1),
+                new Device("medium").latency(2, 2),
+                new Device("slow").latency(4, 4));
+        ContextPool<Context> pool = createPool(devices, 2, ContextPool.Startup.EAGER);
+        Assert.assertEquals(6, pool.size());
+
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        List<CompletableFuture<Long>> tiles = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            int priority = i % 3;
+            tiles.add(CompletableFuture.supplyAsync(() -> pool.run(priority, context -> context.process(1)), threads));
+        }
+        CompletableFuture.allOf(tiles.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        threads.shutdown();
+
+        Assert.assertEquals(0, devices.nViolations.get());
+        Assert.assertEquals(400, devices.nTiles.get());
+        Assert.assertEquals(6, pool.nIdleInstances());
+        Assert.assertEquals(0, pool.nPendingRequests());
+
+        pool.shutdown();
+        Assert.assertEquals(0, devices.nOpenContexts());
+        Assert.assertEquals(0, devices.nViolations.get());
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("single"));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+
+        Context held = pool.acquire();
+        List<Integer> served = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        int[] priorities = {1, 5, 3, 5, 0};
+        for (int i = 0; i < priorities.length; i++) {
+            int id = i;
+            results.add(pool.submit(priorities[i], context -> {
+                served.add(id);
+                return id;
+            }));
+            while (pool.nPendingRequests() < i + 1) Thread.sleep(1); // Requests are placed asynchronously
+        }
+        pool.release(held);
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        // Highest priority first, FIFO among identical priorities
+        Assert.assertEquals(Arrays.asList(1, 3, 2, 0, 4), served);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testStaleRequestsAreSkipped() {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("single"));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+
+        Context held = pool.acquire();
+        ContextPool<Context>.Request stale = pool.request(10, () -> false);
+        ContextPool<Context>.Request cancelled = pool.request(5, null);
+        ContextPool<Context>.Request waiting = pool.request(0, null);
+        Assert.assertTrue(cancelled.cancel());
+
+        pool.release(held);
+        Assert.assertTrue(stale.isCancelled());
+        Assert.assertSame(held, waiting.get());
+        pool.release(held);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSlowIsNeededDoesNotBlockThePool() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a"), new Device("b"));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+
+        Context first = pool.acquire();
+        Context second = pool.acquire();
+        CountDownLatch evaluating = new CountDownLatch(1);
+        CountDownLatch answer = new CountDownLatch(1);
+        ContextPool<Context>.Request slow = pool.request(0, () -> {
+            evaluating.countDown();
+            try {
+                answer.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return pool.nInstances() > 0; // Calls the pool from the condition
+        });
+        Thread releasing = new Thread(() -> pool.release(first)); // Evaluates the condition of the slow request
+        releasing.start();
+        Assert.assertTrue(evaluating.await(10, TimeUnit.SECONDS));
+
+        // The pool stays usable while the condition is being evaluated
+        Assert.assertEquals(2, pool.nBusyInstances());
+        pool.release(second);
+        Assert.assertSame(second, pool.request(0, null).get(10, TimeUnit.SECONDS));
+
+        answer.countDown();
+        Assert.assertSame(first, slow.get(10, TimeUnit.SECONDS));
+        releasing.join();
+        pool.release(first);
+        pool.release(second);
+        pool.shutdown();
+        Assert.assertEquals(0, devices.nViolations.get());
+    }
+
+    @Test
+    public void testShutdownRacingRelease() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            SimulatedDevices devices = new SimulatedDevices(round, new Device("a"), new Device("b"));
+            ContextPool<Context> pool = createPool(devices, 3, ContextPool.Startup.EAGER);
+
+            CountDownLatch acquired = new CountDownLatch(6);
+            List<Thread> holders = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                long holdMs = (round * 7 + i * 3) % 10;
+                Thread holder = new Thread(() -> {
+                    Context context = pool.acquire();
+                    acquired.countDown();
+                    SimulatedDevices.sleep(holdMs);
+                    pool.release(context);
+                });
+                holders.add(holder);
+                holder.start();
+            }
+            acquired.await();
+
+            Thread shutdown = new Thread(pool::shutdown);
+            shutdown.start();
+            shutdown.join(10000);
+            Assert.assertFalse("Shutdown did not return", shutdown.isAlive());
+            for (Thread holder : holders) holder.join();
+
+            Assert.assertEquals(0, pool.size());
+            Assert.assertEquals(0, devices.nOpenContexts());
+            Assert.assertEquals(0, devices.nViolations.get());
+        }
+    }
+
+    @Test
+    public void testForceShutdownWithBusyContexts() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a"));
+        ContextPool<Context> pool = createPool(devices, 2, ContextPool.Startup.EAGER);
+
+        Context busy = pool.acquire();
+        ContextPool<Context>.Request waiting = pool.request(0, null);
+        Context other = waiting.get();
+        ContextPool<Context>.Request pending = pool.request(0, null);
+
+        pool.forceShutdown();
+        Assert.assertTrue(pending.isCancelled());
+        Assert.assertEquals(0, pool.size());
+        for (int i = 0; (i < 1000) && (devices.nOpenContexts() > 0); i++) Thread.sleep(1); // Closed in background threads
+        Assert.assertEquals(0, devices.nOpenContexts());
+
+        // Late releases are reported, and do not close the contexts twice
+        pool.release(busy);
+        pool.release(other);
+        Assert.assertEquals(0, devices.nViolations.get());
+        try {
+            pool.acquire();
+            Assert.fail("A shut down pool should not hand out contexts");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testFailuresAlwaysReleaseContexts() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(7, new Device("flaky").latency(1, 1).failureRate(0.3));
+        ContextPool<Context> pool = createPool(devices, 4, ContextPool.Startup.EAGER);
+
+        List<CompletableFuture<Long>> tiles = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            tiles.add(pool.submit(ContextPool.DEFAULT_PRIORITY, context -> context.process(1)));
+        }
+        long nFailed = tiles.stream().filter(tile -> {
+            try {
+                tile.get(30, TimeUnit.SECONDS);
+                return false;
+            } catch (Exception e) {
+                Assert.assertTrue(e.getCause() instanceof SimulatedDevices.SimulatedFailure);
+                return true;
+            }
+        }).count();
+
+        Assert.assertTrue(nFailed > 0);
+        Assert.assertEquals(nFailed, devices.nFailures.get());
+        for (int i = 0; (i < 1000) && (pool.nIdleInstances() < 4); i++) Thread.sleep(1); // Released right after the result is set
+        Assert.assertEquals(4, pool.nIdleInstances());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testMemoryLimit() {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("small").memory(100));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+
+        Assert.assertEquals(100, pool.getGlobalMemoryInBytes(0));
+        Assert.assertEquals(1, (long) pool.run(0, context -> context.process(100)));
+        try {
+            pool.run(0, context -> context.process(101));
+            Assert.fail("The tile should not fit in the device memory");
+        } catch (SimulatedDevices.SimulatedFailure e) {
+            // Expected
+        }
+        Assert.assertEquals(1, pool.nIdleInstances());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testStartupModes() throws Exception {
+        CountDownLatch slowStartup = new CountDownLatch(1); // Device b can't create any context until released
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a"), new Device("b").startupGate(slowStartup));
+
+        ContextPool<Context> lazy = createPool(devices, 2, ContextPool.Startup.LAZY);
+        Assert.assertEquals(0, lazy.size());
+        Context context = lazy.acquire(); // Created on demand, on the first planned device
+        Assert.assertEquals(0, lazy.getDeviceIndex(context));
+        Assert.assertEquals(1, devices.getContexts().size());
+        lazy.release(context);
+        lazy.shutdown();
+
+        ContextPool<Context> async = createPool(devices, 1, ContextPool.Startup.ASYNC);
+        Assert.assertEquals(1, async.size()); // Device a is ready, device b is still being created
+        Context first = async.acquire();
+        Assert.assertEquals(0, async.getDeviceIndex(first));
+        Assert.assertEquals(1, async.nExpectedInstances(1));
+        async.release(first);
+        slowStartup.countDown();
+        async.shutdown(); // Waits for the instance being created
+        Assert.assertEquals(0, devices.nOpenContexts());
+
+        ContextPool<Context> eager = createPool(devices, 1, ContextPool.Startup.EAGER);
+        Assert.assertEquals(2, eager.size()); // Waits for both devices
+        eager.shutdown();
+        Assert.assertEquals(0, devices.nOpenContexts());
+    }
+
+    @Test
+    public void testElasticResizeUnderLoad() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a").latency(2, 2), new Device("b").latency(2, 2));
+        ContextPool<Context> pool = createPool(devices, 2, ContextPool.Startup.EAGER);
+
+        List<CompletableFuture<Long>> tiles = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            tiles.add(pool.submit(ContextPool.DEFAULT_PRIORITY, context -> context.process(1)));
+            if (i == 50) pool.setNumberOfInstances(0, 4);
+            if (i == 100) pool.removeContexts(1, 2);
+            if (i == 150) pool.setNumberOfInstances(1, 1);
+        }
+        CompletableFuture.allOf(tiles.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+
+        Assert.assertEquals(4, pool.nInstances(0));
+        Assert.assertEquals(1, pool.nInstances(1));
+        Assert.assertEquals(200, devices.nTiles.get());
+        pool.shutdown();
+        Assert.assertEquals(0, devices.nOpenContexts());
+        Assert.assertEquals(0, devices.nViolations.get());
+    }
+
+    @Test
+    public void testAutoscalerAddsInstancesUnderLoad() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a").latency(5, 0).memory(4L * 1024 * 1024 * 1024));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        CLIJxPoolAutoscaler autoscaler = new CLIJxPoolAutoscaler(pool, 1, 3);
+        autoscaler.setSmoothing(1);
+
+        List<CompletableFuture<Long>> tiles = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            tiles.add(pool.submit(ContextPool.DEFAULT_PRIORITY, context -> context.process(1)));
+        }
+        while (pool.nPendingRequests() == 0) Thread.sleep(1);
+        autoscaler.update();
+        autoscaler.update();
+        Assert.assertEquals(3, pool.nExpectedInstances(0));
+        for (int i = 0; (i < 1000) && (pool.nInstances(0) < 3); i++) Thread.sleep(1); // Created in the background
+        Assert.assertEquals(3, pool.nInstances(0));
+
+        CompletableFuture.allOf(tiles.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        for (int i = 0; (i < 1000) && (pool.nBusyInstances() > 0); i++) Thread.sleep(1);
+        autoscaler.update();
+        Assert.assertEquals(2, pool.nInstances(0)); // Idle: one instance drained per update
+        pool.shutdown();
+    }
+
+    @Test
+    public void testAutoscalerUsesMeasuredMemory() throws Exception {
+        final long megabyte = 1024 * 1024;
+        // Tiles of 100 MB on a 1.5 GB device: the default estimate of 1 GB per instance would not allow a second instance
+        checkAutoscalerMemory(1536 * megabyte, 100 * megabyte, 3);
+        // Tiles of 3 GB on a 4 GB device: the default estimate would allow a second instance, which could not run a tile
+        checkAutoscalerMemory(4096 * megabyte, 3072 * megabyte, 1);
+    }
+
+    private static void checkAutoscalerMemory(long deviceMemory, long tileMemory, int expectedInstances) throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a").latency(200, 0).memory(deviceMemory));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        CLIJxPoolAutoscaler autoscaler = new CLIJxPoolAutoscaler(pool, 1, 3);
+        autoscaler.setSmoothing(1);
+
+        List<CompletableFuture<Long>> tiles = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            tiles.add(pool.submit(ContextPool.DEFAULT_PRIORITY, context -> context.process(tileMemory)));
+        }
+        while ((pool.nPendingRequests() == 0) || (pool.getUsedMemoryInBytes(0) <= 0)) Thread.sleep(1);
+        autoscaler.update();
+        autoscaler.update();
+        Assert.assertEquals(expectedInstances, pool.nExpectedInstances(0));
+        for (int i = 0; (i < 1000) && (pool.nInstances(0) < expectedInstances); i++) Thread.sleep(1); // Created in the background
+        Assert.assertEquals(expectedInstances, pool.nInstances(0));
+
+        CompletableFuture.allOf(tiles.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        pool.shutdown();
+        Assert.assertEquals(0, devices.nFailures.get());
+    }
+
+    @Test
+    public void testAutoscalerDoesNotScaleUpWithUnknownMemory() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a").latency(200, 0));
+        // A factory which cannot tell the memory used by its contexts
+        ContextPool.Factory<Context> factory = new ContextPool.Factory<Context>() {
+            @Override
+            public Context create(int deviceIndex) {
+                return devices.create(deviceIndex);
+            }
+
+            @Override
+            public void close(Context context) {
+                devices.close(context);
+            }
+
+            @Override
+            public String getName(Context context) {
+                return devices.getName(context);
+            }
+
+            @Override
+            public long getGlobalMemoryInBytes(Context context) {
+                return devices.getGlobalMemoryInBytes(context);
+            }
+        };
+        ContextPool<Context> pool = new ContextPool<>(factory, new int[]{0}, new int[]{1}, ContextPool.Startup.EAGER);
+        CLIJxPoolAutoscaler autoscaler = new CLIJxPoolAutoscaler(pool, 1, 3);
+        autoscaler.setSmoothing(1);
+
+        List<CompletableFuture<Long>> tiles = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tiles.add(pool.submit(ContextPool.DEFAULT_PRIORITY, context -> context.process(1)));
+        }
+        while (pool.nPendingRequests() == 0) Thread.sleep(1);
+        Assert.assertEquals(-1, pool.getUsedMemoryInBytes(0));
+        autoscaler.update();
+        Assert.assertEquals(1, pool.nExpectedInstances(0));
+
+        CompletableFuture.allOf(tiles.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testAutoscalerDoesNotWaitForCreations() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        Device device = new Device("a").latency(5, 0);
+        SimulatedDevices devices = new SimulatedDevices(42, device);
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        device.startupGate(gate); // The next contexts are created once the test lets them
+        CLIJxPoolAutoscaler autoscaler = new CLIJxPoolAutoscaler(pool, 3, 3);
+
+        Thread updating = new Thread(autoscaler::update);
+        updating.start();
+        updating.join(10000);
+        Assert.assertFalse("The autoscaler waited for the creation of an instance", updating.isAlive());
+        autoscaler.update(); // Sampled again while the first creation is still blocked
+        Assert.assertEquals(3, pool.nExpectedInstances(0));
+        Assert.assertEquals(1, pool.nInstances(0));
+
+        gate.countDown();
+        for (int i = 0; (i < 1000) && (pool.nInstances(0) < 3); i++) Thread.sleep(1);
+        Assert.assertEquals(3, pool.nInstances(0));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testConcurrentResizeDoesNotOvershoot() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a").startup(20));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<CompletableFuture<Void>> resizes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            resizes.add(CompletableFuture.runAsync(() -> pool.setNumberOfInstances(0, 3), threads));
+        }
+        CompletableFuture.allOf(resizes.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        threads.shutdown();
+
+        Assert.assertEquals(3, pool.nInstances(0));
+        Assert.assertEquals(3, devices.getContexts().size());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testInterruptedWaitKeepsTheInterruptFlag() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a"));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        Context held = pool.acquire();
+
+        AtomicInteger interrupted = new AtomicInteger();
+        Thread waiting = new Thread(() -> {
+            try {
+                pool.acquire();
+            } catch (RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) interrupted.incrementAndGet();
+            }
+        });
+        waiting.start();
+        while (pool.nPendingRequests() == 0) Thread.sleep(1);
+        waiting.interrupt();
+        waiting.join(10000);
+
+        Assert.assertEquals(1, interrupted.get());
+        Assert.assertEquals(0, pool.nPendingRequests());
+        pool.release(held);
+        Assert.assertEquals(1, pool.nIdleInstances());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testTimeoutsAreCancelled() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a"));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        int nTimeouts = ContextPool.getTimer().getQueue().size(); // Left by other tests
+        for (int i = 0; i < 100; i++) {
+            pool.release(pool.acquireAsync(0, 1, TimeUnit.HOURS, Runnable::run).get(10, TimeUnit.SECONDS));
+        }
+        Assert.assertTrue(ContextPool.getTimer().getQueue().size() <= nTimeouts);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testResizeLazyPool() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a"), new Device("b"));
+        ContextPool<Context> pool = createPool(devices, 4, ContextPool.Startup.LAZY);
+        Assert.assertArrayEquals(new int[]{0, 1}, pool.getDeviceIndices()); // Planned devices are part of the pool
+        Assert.assertEquals(4, pool.nExpectedInstances(0));
+
+        pool.setNumberOfInstances(0, 1);
+        pool.setNumberOfInstances(1, 0);
+        Assert.assertArrayEquals(new int[]{0}, pool.getDeviceIndices());
+        Assert.assertEquals(1, pool.nExpectedInstances(0));
+
+        List<CompletableFuture<Long>> tiles = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            tiles.add(pool.submit(ContextPool.DEFAULT_PRIORITY, context -> context.process(1)));
+        }
+        CompletableFuture.allOf(tiles.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(1, pool.nInstances(0));
+        Assert.assertEquals(1, devices.getContexts().size());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testDrainContextBeingCreated() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a").startup(100));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        Context busy = pool.acquire();
+
+        CompletableFuture<Context> added = CompletableFuture.supplyAsync(() -> pool.addContext(0));
+        while (pool.nExpectedInstances(0) < 2) Thread.sleep(1);
+        Assert.assertEquals(1, pool.removeContexts(0, 1)); // No idle instance: drains the one being created
+        Assert.assertEquals(1, pool.nExpectedInstances(0));
+
+        Assert.assertNull(added.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, devices.getContexts().size());
+        Assert.assertEquals(1, devices.nOpenContexts()); // The new context is closed as soon as it is ready
+        Assert.assertEquals(1, pool.nInstances(0));
+        pool.release(busy);
+        pool.shutdown();
+        Assert.assertEquals(0, devices.nOpenContexts());
+    }
+
+    @Test
+    public void testFailedTasksAreRetriedAndBrokenInstancesQuarantined() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("broken").failureRate(1), new Device("healthy"));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        pool.setQuarantine(2, 1);
+
+        // Every task succeeds, on the healthy device, until the broken one and its replacement are quarantined
+        for (int i = 0; (i < 1000) && (pool.getHealth(0).getNumberOfQuarantinedInstances() < 2); i++) {
+            pool.runWithRetry(ContextPool.DEFAULT_PRIORITY, null, 2, context -> context.process(1));
+            if (pool.nInstances(0) == 0) Thread.sleep(1); // The replacement is created in the background
+        }
+
+        ContextPool.Health broken = pool.getHealth(0);
+        Assert.assertEquals(2, broken.getNumberOfQuarantinedInstances());
+        Assert.assertEquals(1, broken.getNumberOfReplacedInstances());
+        Assert.assertEquals(4, broken.getNumberOfFailures());
+        Assert.assertEquals(4, broken.getNumberOfRetries());
+        Assert.assertEquals(0, broken.getNumberOfSucceededTasks());
+        Assert.assertEquals(devices.nTiles.get(), pool.getHealth(1).getNumberOfSucceededTasks());
+        Assert.assertEquals(0, pool.nInstances(0));
+        Assert.assertEquals(1, pool.nIdleInstances());
+        Assert.assertTrue(pool.getDetails().contains("quarantined:2"));
+
+        pool.shutdown();
+        for (int i = 0; (i < 1000) && (devices.nOpenContexts() > 0); i++) Thread.sleep(1); // Closed in background threads
+        Assert.assertEquals(0, devices.nOpenContexts());
+        Assert.assertEquals(0, devices.nViolations.get());
+    }
+
+    @Test
+    public void testProcessorErrorsQuarantineNothing() {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a"), new Device("b"));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        pool.setQuarantine(1, 0);
+
+        // A bug of the task is not a failure of the device: it is thrown at the first attempt, and never retried
+        AtomicInteger nRuns = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            try {
+                pool.runWithRetry(ContextPool.DEFAULT_PRIORITY, null, 3, context -> {
+                    nRuns.incrementAndGet();
+                    throw new IllegalStateException("Broken processor");
+                });
+                Assert.fail("The error of the task should be thrown");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        }
+
+        Assert.assertEquals(3, nRuns.get());
+        for (int deviceIndex = 0; deviceIndex < 2; deviceIndex++) {
+            ContextPool.Health health = pool.getHealth(deviceIndex);
+            Assert.assertEquals(0, health.getNumberOfFailures());
+            Assert.assertEquals(0, health.getNumberOfRetries());
+            Assert.assertEquals(0, health.getNumberOfQuarantinedInstances());
+            Assert.assertEquals(1, pool.nInstances(deviceIndex));
+        }
+        Assert.assertEquals(2, pool.nIdleInstances());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSuccessResetsConsecutiveFailures() {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("a"));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        pool.setQuarantine(3, 0);
+
+        Context context = pool.acquire();
+        for (int i = 0; i < 2; i++) {
+            pool.releaseFailed(context, new SimulatedDevices.SimulatedFailure("failure " + i));
+            Assert.assertSame(context, pool.acquire());
+        }
+        pool.release(context);
+        for (int i = 0; i < 2; i++) {
+            Assert.assertSame(context, pool.acquire());
+            pool.releaseFailed(context, new SimulatedDevices.SimulatedFailure("failure " + i));
+        }
+
+        Assert.assertEquals(1, pool.nInstances(0));
+        Assert.assertEquals(4, pool.getHealth(0).getNumberOfFailures());
+        Assert.assertTrue(pool.getDetails().contains("Failures [4 total, 2 in a row]"));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testNoHangOnceAllInstancesAreQuarantined() throws Exception {
+        SimulatedDevices devices = new SimulatedDevices(42, new Device("broken").failureRate(1));
+        ContextPool<Context> pool = createPool(devices, 1, ContextPool.Startup.EAGER);
+        pool.setQuarantine(1, 0);
+
+        Context context = pool.acquire();
+        CompletableFuture<Context> waiting = pool.acquireAsync(ContextPool.DEFAULT_PRIORITY);
+        pool.releaseFailed(context, new SimulatedDevices.SimulatedFailure("lost device"));
+
+        try {
+            waiting.get(10, TimeUnit.SECONDS);
+            Assert.fail("No instance is left to serve the request");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+        try {
+            pool.runWithRetry(ContextPool.DEFAULT_PRIORITY, null, 3, c -> c.process(1));
+            Assert.fail("No instance is left to run the task");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        pool.shutdown();
+        for (int i = 0; (i < 1000) && (devices.nOpenContexts() > 0); i++) Thread.sleep(1); // Closed in a background thread
+        Assert.assertEquals(0, devices.nOpenContexts());
+    }
+}
@@ -0,0 +1,160 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link FastCopy} gives the same results as the generic per pixel copy
+ */
+public class TestFastCopy {
+
+    final long[] padding = new long[]{5, 3, 2};
+
+    @Test
+    public void testSameTypeTranslated() {
+        // Same layout as in CLIJxFilterOp.accept: the padded result is copied into the inner part of a cell
+        final ArrayImg<FloatType, FloatArray> result = ArrayImgs.floats(70, 66, 64);
+        fillRandom(result);
+        final ArrayImg<FloatType, FloatArray> cell = ArrayImgs.floats(60, 60, 60);
+        final ArrayImg<FloatType, FloatArray> expected = ArrayImgs.floats(60, 60, 60);
+
+        FastCopy.copyReal(result, Views.translate(Views.zeroMin(cell), padding));
+        genericCopyReal(result, Views.translate(Views.zeroMin(expected), padding));
+
+        assertEquals(expected, cell);
+    }
+
+    @Test
+    public void testConversionToFloat() {
+        final ArrayImg<UnsignedShortType, ?> result = ArrayImgs.unsignedShorts(70, 66, 64);
+        fillRandom(result);
+        final ArrayImg<FloatType, FloatArray> cell = ArrayImgs.floats(60, 60, 60);
+        final ArrayImg<FloatType, FloatArray> expected = ArrayImgs.floats(60, 60, 60);
+
+        FastCopy.copyReal(result, Views.translate(Views.zeroMin(cell), padding));
+        genericCopyReal(result, Views.translate(Views.zeroMin(expected), padding));
+
+        assertEquals(expected, cell);
+    }
+
+    @Test
+    public void testGenericFallback() {
+        // Narrowing conversion and planar target: not array backed, falls back to the generic path
+        final ArrayImg<FloatType, FloatArray> result = ArrayImgs.floats(70, 66, 64);
+        fillRandom(result);
+        final RandomAccessibleInterval<UnsignedByteType> cell = PlanarImgs.unsignedBytes(60, 60, 60);
+        final ArrayImg<UnsignedByteType, ?> expected = ArrayImgs.unsignedBytes(60, 60, 60);
+
+        FastCopy.copyReal(result, Views.translate(Views.zeroMin(cell), padding));
+        genericCopyReal(result, Views.translate(Views.zeroMin(expected), padding));
+
+        assertEquals(expected, cell);
+    }
+
+    @Test
+    public void testCellImgSource() {
+        // A source stored in cells which do not align with the target, as a lazily loaded image would be
+        final CellImg<FloatType, ?> result = new CellImgFactory<>(new FloatType(), 16, 12, 20).create(70, 66, 64);
+        fillRandom(result);
+        final ArrayImg<FloatType, FloatArray> cell = ArrayImgs.floats(60, 60, 60);
+        final ArrayImg<FloatType, FloatArray> expected = ArrayImgs.floats(60, 60, 60);
+
+        FastCopy.copy(result, Views.translate(Views.zeroMin(cell), padding));
+        genericCopyReal(result, Views.translate(Views.zeroMin(expected), padding));
+
+        assertEquals(expected, cell);
+    }
+
+    @Test
+    public void testCellImgSourceConversionToFloat() {
+        final CellImg<UnsignedShortType, ?> source = new CellImgFactory<>(new UnsignedShortType(), 7, 9).create(100, 100);
+        fillRandom(source);
+        final ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(100, 100);
+        final ArrayImg<FloatType, FloatArray> expected = ArrayImgs.floats(100, 100);
+
+        final Interval interval = Intervals.createMinMax(10, 20, 59, 79);
+        FastCopy.copyReal(Views.translate(source, 3, -2), Views.interval(target, interval));
+        genericCopyReal(Views.interval(Views.translate(source, 3, -2), interval), Views.interval(expected, interval));
+
+        assertEquals(expected, target);
+    }
+
+    @Test
+    public void testOffsetInterval() {
+        final ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(100, 100);
+        fillRandom(source);
+        final ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(100, 100);
+        final ArrayImg<FloatType, FloatArray> expected = ArrayImgs.floats(100, 100);
+
+        FastCopy.copy(source, Views.interval(target, Intervals.createMinMax(10, 20, 59, 79)));
+        genericCopyReal(source, Views.interval(expected, Intervals.createMinMax(10, 20, 59, 79)));
+
+        assertEquals(expected, target);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Test
+    public void testUnpackBitsIntoCell() {
+        // Packed result of a padded 3D tile whose width is not a multiple of 8
+        final long[] dimensions = new long[]{21, 9, 6};
+        final Random random = new Random(42);
+        final byte[] bits = new byte[3 * 9 * 6];
+        random.nextBytes(bits);
+        final ArrayImg<UnsignedByteType, ?> unpacked = ArrayImgs.unsignedBytes(dimensions);
+        final Cursor<UnsignedByteType> cursor = Views.flatIterable(unpacked).localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            final int x = cursor.getIntPosition(0);
+            final int line = cursor.getIntPosition(1) + 9 * cursor.getIntPosition(2);
+            cursor.get().set((bits[line * 3 + x / 8] >> (x % 8)) & 1);
+        }
+
+        // Array backed cells of different types, and a planar one which is not
+        final RandomAccessibleInterval<?>[] cells = {
+                ArrayImgs.unsignedBytes(11, 3, 2), ArrayImgs.floats(11, 3, 2), PlanarImgs.unsignedShorts(11, 3, 2)};
+        for (RandomAccessibleInterval<?> cell : cells) {
+            final RandomAccessibleInterval<FloatType> expected = ArrayImgs.floats(11, 3, 2);
+            genericCopyReal(unpacked, Views.translate(expected, padding));
+            FastCopy.unpackBits(bits, dimensions, (RandomAccessibleInterval) Views.translate((RandomAccessibleInterval) cell, padding));
+            assertEquals(expected, (RandomAccessibleInterval) cell);
+        }
+    }
+
+    static <T extends RealType<T>, S extends RealType<S>> void genericCopyReal(
+            final RandomAccessibleInterval<T> source,
+            final RandomAccessibleInterval<S> target) {
+        Views.flatIterable(Views.interval(Views.pair(source, target), target)).forEach(
+                pair -> pair.getB().setReal(pair.getA().getRealDouble()));
+    }
+
+    static <T extends RealType<T>> void fillRandom(final RandomAccessibleInterval<T> image) {
+        final Random random = new Random(42);
+        final double max = Math.min(image.getType().getMaxValue(), 1000);
+        Views.flatIterable(image).forEach(pixel -> pixel.setReal(random.nextDouble() * max));
+    }
+
+    static <T extends RealType<T>, S extends RealType<S>> void assertEquals(
+            final RandomAccessibleInterval<T> expected,
+            final RandomAccessibleInterval<S> actual) {
+        LoopBuilder.setImages(expected, actual).forEachPixel((e, a) ->
+                Assert.assertEquals(e.getRealDouble(), a.getRealDouble(), 0));
+    }
+}
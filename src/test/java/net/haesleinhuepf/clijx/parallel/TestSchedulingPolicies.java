@@ -0,0 +1,164 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clijx.parallel.SimulatedDevices.Context;
+import net.haesleinhuepf.clijx.parallel.SimulatedDevices.Device;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares scheduling policies of {@link ContextPool} on {@link SimulatedDevices}, driven by a virtual clock: the
+ * contexts are held by the test and released when the simulated latency of their tile is over. The results only
+ * depend on the seed and on the decisions of the pool, not on the speed of the machine running the tests, so that
+ * they are reproducible.
+ * <p>
+ * The workload is a viewer: a quarter of the tiles are visible, and the view moves to another quarter after a while.
+ */
+public class TestSchedulingPolicies {
+
+    enum Policy {
+        FIFO, // all tiles have the same priority
+        PRIORITY, // visible tiles first, priorities set once when the tiles are requested
+        REPRIORITIZE // visible tiles first, pending tiles are requested again with new priorities when the view moves
+    }
+
+    static final int N_TILES = 120;
+    static final long VIEW_CHANGE_MS = 40;
+
+    static class Result {
+        long firstViewMs; // until all tiles of the first view are processed
+        long secondViewMs; // from the view change until all tiles of the second view are processed
+        long makespanMs; // until all tiles are processed
+        int nTiles;
+
+        @Override
+        public boolean equals(Object other) {
+            return (other instanceof Result) && toString().equals(other.toString());
+        }
+
+        @Override
+        public int hashCode() {
+            return toString().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return nTiles + " tiles in " + makespanMs + " ms, first view in " + firstViewMs + " ms, second view in " + secondViewMs + " ms";
+        }
+    }
+
+    @Test
+    public void testSimulationIsReproducible() {
+        for (Policy policy : Policy.values()) {
+            Assert.assertEquals(policy.toString(), simulate(42, policy), simulate(42, policy));
+        }
+    }
+
+    @Test
+    public void testComparePolicies() {
+        for (long seed = 1; seed <= 10; seed++) {
+            Result fifo = simulate(seed, Policy.FIFO);
+            Result priority = simulate(seed, Policy.PRIORITY);
+            Result reprioritize = simulate(seed, Policy.REPRIORITIZE);
+            System.out.println("Seed " + seed + ": FIFO " + fifo + " | PRIORITY " + priority + " | REPRIORITIZE " + reprioritize);
+
+            for (Result result : new Result[]{fifo, priority, reprioritize}) {
+                Assert.assertEquals(N_TILES, result.nTiles);
+            }
+            // The pool never leaves a context idle while a tile is waiting: all policies have the same throughput
+            Assert.assertEquals(fifo.makespanMs, priority.makespanMs);
+            Assert.assertEquals(fifo.makespanMs, reprioritize.makespanMs);
+            // Priorities only change which tiles come first
+            Assert.assertTrue(priority.firstViewMs < fifo.firstViewMs);
+            Assert.assertTrue(reprioritize.secondViewMs < priority.secondViewMs);
+        }
+    }
+
+    /**
+     * A context processing a tile until a time of the virtual clock
+     */
+    static class Running {
+        final int tile; // -1 if the context is not processing any tile
+        final Context context;
+        final long endMs;
+
+        Running(int tile, Context context, long endMs) {
+            this.tile = tile;
+            this.context = context;
+            this.endMs = endMs;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Result simulate(long seed, Policy policy) {
+        SimulatedDevices devices = new SimulatedDevices(seed,
+                new Device("fast").latency(2, 2),
+                new Device("medium").latency(4, 4),
+                new Device("slow").latency(8, 8));
+        ContextPool<Context> pool = TestContextPool.createPool(devices, 2, ContextPool.Startup.EAGER);
+
+        // Contexts of the same device are ordered by ordinal, which is what seeds them
+        PriorityQueue<Running> running = new PriorityQueue<>(Comparator.<Running>comparingLong(r -> r.endMs)
+                .thenComparingInt(r -> r.context.deviceIndex)
+                .thenComparingInt(r -> r.context.ordinal));
+        // All contexts are busy until the tiles are requested, then released one after the other
+        for (int i = pool.size(); i > 0; i--) {
+            running.add(new Running(-1, pool.acquire(), 0));
+        }
+
+        final long[] now = {0};
+        final long[] done = new long[N_TILES];
+        final CompletableFuture<Context>[] requests = new CompletableFuture[N_TILES];
+        for (int tile = 0; tile < N_TILES; tile++) {
+            requests[tile] = request(pool, policy, tile, 0, running, now);
+        }
+
+        long viewChangeMs = -1;
+        int nTiles = 0;
+        while (!running.isEmpty()) {
+            Running next = running.poll();
+            now[0] = next.endMs;
+            if (next.tile >= 0) {
+                done[next.tile] = now[0];
+                nTiles++;
+            }
+            if ((viewChangeMs < 0) && (now[0] >= VIEW_CHANGE_MS)) {
+                viewChangeMs = now[0];
+                if (policy == Policy.REPRIORITIZE) {
+                    for (int tile = 0; tile < N_TILES; tile++) {
+                        if (requests[tile].cancel(false)) { // Still waiting for a context
+                            requests[tile] = request(pool, policy, tile, 1, running, now);
+                        }
+                    }
+                }
+            }
+            // The pool hands the context over to the next request, in this thread
+            pool.release(next.context);
+        }
+        pool.shutdown();
+
+        Result result = new Result();
+        result.nTiles = nTiles;
+        for (int tile = 0; tile < N_TILES; tile++) {
+            result.makespanMs = Math.max(result.makespanMs, done[tile]);
+            if (isVisible(tile, 0)) result.firstViewMs = Math.max(result.firstViewMs, done[tile]);
+            if (isVisible(tile, 1)) result.secondViewMs = Math.max(result.secondViewMs, done[tile] - viewChangeMs);
+        }
+        return result;
+    }
+
+    static boolean isVisible(int tile, int view) {
+        return tile % 4 == view;
+    }
+
+    private static CompletableFuture<Context> request(ContextPool<Context> pool, Policy policy, int tile, int view, PriorityQueue<Running> running, long[] now) {
+        int priority = (policy != Policy.FIFO) && isVisible(tile, view) ? 1 : 0;
+        CompletableFuture<Context> request = pool.acquireAsync(priority, 0, TimeUnit.MILLISECONDS, Runnable::run);
+        request.thenAccept(context -> running.add(new Running(tile, context, now[0] + context.nextLatency())));
+        return request;
+    }
+}
@@ -0,0 +1,72 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clijx.parallel.implementations.DummyFilter;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests skipping tiles. Skipped tiles never reach the pool, so that these tests run without any OpenCL device.
+ */
+public class TestTileSkip {
+
+    @Test
+    public void testMaxBelow() {
+        ArrayImg<FloatType, FloatArray> image = ArrayImgs.floats(32, 32);
+        TileSkip<FloatType> skip = TileSkip.maxBelow(10, 0, 1);
+        Assert.assertEquals(0, skip.fillValue(image), 0);
+
+        image.randomAccess().setPositionAndGet(new long[]{7, 9}).set(10);
+        Assert.assertNull(skip.fillValue(image));
+        Assert.assertEquals(0, skip.fillValue(Views.interval(image, Intervals.createMinMax(8, 0, 31, 31))), 0);
+    }
+
+    @Test
+    public void testConstant() {
+        ArrayImg<FloatType, FloatArray> image = ArrayImgs.floats(16, 16);
+        for (FloatType pixel : image) pixel.set(5);
+        TileSkip<FloatType> skip = TileSkip.constant(0.5, 2, value -> 2 * value);
+        Assert.assertEquals(10, skip.fillValue(image), 0);
+
+        image.randomAccess().setPositionAndGet(new long[]{4, 4}).set(6);
+        Assert.assertNull(skip.fillValue(image));
+    }
+
+    @Test
+    public void testMask() {
+        ArrayImg<BitType, ?> mask = ArrayImgs.bits(4, 4);
+        mask.randomAccess().setPositionAndGet(new long[]{3, 0}).set(true);
+        TileSkip<FloatType> skip = TileSkip.mask(mask, new long[]{8, 8}, -1);
+        ArrayImg<FloatType, FloatArray> image = ArrayImgs.floats(32, 32);
+
+        Assert.assertEquals(-1, skip.fillValue(Views.interval(image, Intervals.createMinMax(0, 0, 15, 15))), 0);
+        Assert.assertNull(skip.fillValue(Views.interval(image, Intervals.createMinMax(16, 0, 31, 15))));
+        Assert.assertEquals(-1, skip.fillValue(Views.interval(image, Intervals.createMinMax(16, 16, 31, 31))), 0);
+    }
+
+    @Test
+    public void testSkippedTilesAreFilled() {
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(64, 64);
+        CLIJxFilterOp<FloatType, FloatType> op = new CLIJxFilterOp<>(Views.extendZero(source), null, DummyFilter.class, 4, 4);
+        op.setSkip(TileSkip.maxBelow(1, 3, 4));
+
+        ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(64, 64);
+        RandomAccessibleInterval<FloatType> cell = Views.interval(target, Intervals.createMinMax(0, 0, 31, 31));
+        op.accept(cell);
+
+        for (FloatType pixel : Views.iterable(cell)) {
+            Assert.assertEquals(3, pixel.get(), 0);
+        }
+        Assert.assertEquals(0, Views.interval(target, Intervals.createMinMax(32, 32, 63, 63)).firstElement().get(), 0);
+        Assert.assertEquals(1, op.getNumberOfSkippedTiles());
+        Assert.assertEquals(0, op.getNumberOfProcessedTiles());
+        Assert.assertEquals(1, op.getSkipRatio(), 0);
+    }
+}
@@ -0,0 +1,154 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clijx.parallel.implementations.DummyFilter;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the CPU stage of {@link CLIJxFilterOp}, which runs without any OpenCL device
+ */
+public class TestTileStaging {
+
+    @Test
+    public void testMaterialize() {
+        ArrayImg<FloatType, FloatArray> image = ArrayImgs.floats(8, 8);
+        int i = 0;
+        for (FloatType pixel : image) pixel.set(i++);
+
+        TileStaging.StagedTile staged = TileStaging.materialize(Views.interval(image, Intervals.createMinMax(2, 3, 5, 7)));
+        Assert.assertArrayEquals(new long[]{4, 5}, staged.getDimensions());
+        Assert.assertArrayEquals(new float[]{26, 27, 28, 29, 34}, Arrays.copyOf(((FloatArray) staged.getImg().update(null)).getCurrentStorageArray(), 5), 0);
+    }
+
+    @Test
+    public void testTilesAreStagedAhead() throws Exception {
+        ArrayImg<FloatType, FloatArray> image = ArrayImgs.floats(16, 16);
+        AtomicInteger nEvaluated = new AtomicInteger();
+        RandomAccessibleInterval<FloatType> counting = Converters.convert((RandomAccessibleInterval<FloatType>) image, (a, b) -> {
+            nEvaluated.incrementAndGet();
+            b.set(a);
+        }, new FloatType());
+
+        TileStaging staging = new TileStaging(1, 2);
+        RandomAccessibleInterval<FloatType> tile = Views.interval(counting, Intervals.createMinMax(0, 0, 7, 7));
+        Assert.assertTrue(staging.stageAhead(tile));
+        Assert.assertFalse("A tile is staged ahead once", staging.stageAhead(Views.interval(counting, Intervals.createMinMax(0, 0, 7, 7))));
+        Assert.assertEquals(1, staging.nStagedTiles());
+
+        // Evaluated on the staging thread, without anyone waiting for it
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((nEvaluated.get() < 64) && (System.currentTimeMillis() < deadline)) Thread.sleep(10);
+        Thread.sleep(100);
+        int nEvaluatedAhead = nEvaluated.get();
+
+        Assert.assertArrayEquals(new long[]{8, 8}, staging.take(tile).getDimensions());
+        Assert.assertEquals("Taking a staged tile does not evaluate it again", nEvaluatedAhead, nEvaluated.get());
+        Assert.assertEquals(0, staging.nStagedTiles());
+
+        // A tile which was not staged ahead is materialized by the thread taking it
+        staging.take(Views.interval(counting, Intervals.createMinMax(8, 8, 15, 15)));
+        Assert.assertTrue(nEvaluated.get() >= nEvaluatedAhead + 64);
+        Assert.assertEquals(1, staging.getNumberOfTilesTakenAhead());
+        Assert.assertEquals(1, staging.getNumberOfTilesNotStagedAhead());
+        staging.shutdown();
+    }
+
+    @Test
+    public void testBackPressure() throws Exception {
+        ArrayImg<FloatType, FloatArray> image = ArrayImgs.floats(16, 16);
+        CountDownLatch open = new CountDownLatch(1);
+        // An expensive source, which waits until the test lets it go
+        RandomAccessibleInterval<FloatType> slow = Converters.convert((RandomAccessibleInterval<FloatType>) image, (a, b) -> {
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            b.set(a);
+        }, new FloatType());
+
+        TileStaging staging = new TileStaging(1, 2);
+        Assert.assertTrue(staging.stageAhead(Views.interval(slow, Intervals.createMinMax(0, 0, 7, 7))));
+        Assert.assertTrue(staging.stageAhead(Views.interval(slow, Intervals.createMinMax(8, 0, 15, 7))));
+        Assert.assertEquals(2, staging.nStagedTiles());
+
+        // The staging is full: the producer waits until a staged tile is taken
+        CompletableFuture<Boolean> third = CompletableFuture.supplyAsync(() -> staging.stageAhead(Views.interval(slow, Intervals.createMinMax(0, 8, 7, 15))));
+        Thread.sleep(100);
+        Assert.assertFalse(third.isDone());
+
+        open.countDown();
+        staging.take(Views.interval(slow, Intervals.createMinMax(0, 0, 7, 7)));
+        Assert.assertTrue(third.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, staging.nStagedTiles());
+        Assert.assertEquals(0, staging.getNumberOfDroppedTiles());
+        staging.shutdown();
+    }
+
+    @Test
+    public void testOldestTileIsDroppedAfterMaxWait() {
+        ArrayImg<FloatType, FloatArray> image = ArrayImgs.floats(16, 16);
+        TileStaging staging = new TileStaging(1, 1);
+        staging.setMaxWaitMs(50);
+        staging.stageAhead(Views.interval(image, Intervals.createMinMax(0, 0, 7, 7)));
+        // Never taken, its place is given to the next tile
+        Assert.assertTrue(staging.stageAhead(Views.interval(image, Intervals.createMinMax(8, 0, 15, 7))));
+        Assert.assertEquals(1, staging.nStagedTiles());
+        Assert.assertEquals(1, staging.getNumberOfDroppedTiles());
+
+        staging.take(Views.interval(image, Intervals.createMinMax(0, 0, 7, 7)));
+        Assert.assertEquals("The dropped tile is materialized when taken", 1, staging.getNumberOfTilesNotStagedAhead());
+        staging.shutdown();
+    }
+
+    @Test
+    public void testFailureIsThrownWhenTaken() {
+        RandomAccessibleInterval<FloatType> failing = Converters.convert((RandomAccessibleInterval<FloatType>) ArrayImgs.floats(4, 4), (a, b) -> {
+            throw new IllegalStateException("Source not readable");
+        }, new FloatType());
+
+        TileStaging staging = new TileStaging(2, 1);
+        staging.stageAhead(failing);
+        try {
+            staging.take(failing);
+            Assert.fail("The failure of the source should be thrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        Assert.assertEquals(0, staging.nStagedTiles());
+        staging.shutdown();
+    }
+
+    @Test
+    public void testSkippedCellsAreDiscarded() {
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(64, 64);
+        // No pool: the skipped cell never needs a GPU
+        CLIJxFilterOp<FloatType, FloatType> op = new CLIJxFilterOp<>(Views.extendZero(source), null, DummyFilter.class, 4, 4);
+        TileStaging staging = new TileStaging(1, 4);
+        op.setStaging(staging);
+        op.setSkip(TileSkip.maxBelow(1, 0, 1));
+
+        ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(64, 64);
+        RandomAccessibleInterval<FloatType> cell = Views.interval(target, Intervals.createMinMax(16, 16, 31, 31));
+        op.stageAhead().accept(cell);
+        Assert.assertEquals(1, staging.nStagedTiles());
+
+        op.accept(cell);
+        Assert.assertEquals(0, staging.nStagedTiles());
+        staging.shutdown();
+    }
+}
@@ -0,0 +1,367 @@
+package net.haesleinhuepf.clijx.parallel;
+
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clijx.CLIJx;
+import net.haesleinhuepf.clijx.parallel.TileProtocol.TileRequest;
+import net.haesleinhuepf.clijx.parallel.TileProtocol.TileResponse;
+import net.haesleinhuepf.clijx.parallel.implementations.DummyFilter;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the tile protocol and the remote filter op with workers on localhost. The workers of these tests
+ * process tiles on the CPU, so that no OpenCL device is needed.
+ */
+public class TestTileWorker {
+
+    @Test
+    public void testProtocolRoundTrip() throws IOException {
+        TileRequest request = new TileRequest();
+        request.id = 42;
+        request.processorClass = DummyFilter.class.getName();
+        request.parameters.put("sigma", "2.5");
+        request.dimensions = new long[]{3, 2};
+        request.inputType = NativeTypeEnum.Float;
+        request.input = TileProtocol.toBytes(ArrayImgs.floats(new float[]{1, 2, 3, 4, 5, 6}, 3, 2));
+        request.outputType = NativeTypeEnum.UnsignedByte;
+        request.bitPacked = true;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TileProtocol.write(new DataOutputStream(bytes), request);
+        TileRequest read = TileProtocol.readRequest(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        Assert.assertEquals(request.id, read.id);
+        Assert.assertEquals(request.processorClass, read.processorClass);
+        Assert.assertEquals(request.parameters, read.parameters);
+        Assert.assertArrayEquals(request.dimensions, read.dimensions);
+        Assert.assertEquals(request.inputType, read.inputType);
+        Assert.assertEquals(request.outputType, read.outputType);
+        Assert.assertTrue(read.bitPacked);
+        float[] pixels = ((FloatArray) ((ArrayImg<?, ?>) TileProtocol.toImg(read.input, read.inputType, read.dimensions)).update(null)).getCurrentStorageArray();
+        Assert.assertArrayEquals(new float[]{1, 2, 3, 4, 5, 6}, pixels, 0);
+    }
+
+    @Test
+    public void testRemoteFilteringWithFailover() throws IOException {
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(64, 48);
+        TestFastCopy.fillRandom(source);
+        ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(64, 48);
+
+        TileWorker worker1 = new TileWorker(null, TestTileWorker::doublePixels, 0);
+        TileWorker worker2 = new TileWorker(null, TestTileWorker::doublePixels, 0);
+        worker1.start();
+        worker2.start();
+
+        CLIJxRemoteFilterOp<FloatType, FloatType> op = new CLIJxRemoteFilterOp<>(
+                Views.extendMirrorSingle(source),
+                Arrays.asList(new InetSocketAddress("localhost", worker1.getPort()), new InetSocketAddress("localhost", worker2.getPort())),
+                1, DummyFilter.class, null, new FloatType(), false, 4, 4);
+
+        op.accept(Views.interval(target, Intervals.createMinMax(0, 0, 31, 47)));
+        op.accept(Views.interval(target, Intervals.createMinMax(32, 0, 63, 47))); // Both workers are now connected
+
+        worker1.close(); // The tiles sent to worker 1 are retried on worker 2
+        ArrayImg<FloatType, FloatArray> target2 = ArrayImgs.floats(64, 48);
+        op.accept(Views.interval(target2, Intervals.createMinMax(0, 0, 31, 47)));
+        op.accept(Views.interval(target2, Intervals.createMinMax(32, 0, 63, 47)));
+
+        op.close();
+        worker2.close();
+
+        assertDoubled(source, target);
+        assertDoubled(source, target2);
+    }
+
+    @Test
+    public void testWorkerErrorsAreRetriedOnAnotherWorker() throws IOException {
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(64, 48);
+        TestFastCopy.fillRandom(source);
+        ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(64, 48);
+
+        TileWorker broken = new TileWorker(null, request -> {
+            throw new IllegalStateException("Out of device memory");
+        }, 0);
+        TileWorker healthy = new TileWorker(null, TestTileWorker::doublePixels, 0);
+        broken.start();
+        healthy.start();
+
+        CLIJxRemoteFilterOp<FloatType, FloatType> op = new CLIJxRemoteFilterOp<>(
+                Views.extendMirrorSingle(source),
+                Arrays.asList(new InetSocketAddress("localhost", broken.getPort()), new InetSocketAddress("localhost", healthy.getPort())),
+                2, DummyFilter.class, null, new FloatType(), false, 4, 4);
+        op.accept(Views.interval(target, Intervals.createMinMax(0, 0, 31, 47)));
+        op.accept(Views.interval(target, Intervals.createMinMax(32, 0, 63, 47)));
+        op.close();
+        assertDoubled(source, target);
+
+        CLIJxRemoteFilterOp<FloatType, FloatType> brokenOnly = new CLIJxRemoteFilterOp<>(
+                Views.extendMirrorSingle(source),
+                Arrays.asList(new InetSocketAddress("localhost", broken.getPort())),
+                2, DummyFilter.class, null, new FloatType(), false, 4, 4);
+        try {
+            brokenOnly.accept(Views.interval(target, Intervals.createMinMax(0, 0, 31, 47)));
+            Assert.fail("The error of the worker should be thrown");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("Out of device memory"));
+        }
+        brokenOnly.close();
+        broken.close();
+        healthy.close();
+    }
+
+    @Test
+    public void testHungWorkersTimeOut() throws IOException {
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(64, 48);
+        TestFastCopy.fillRandom(source);
+        ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(64, 48);
+
+        CountDownLatch driver = new CountDownLatch(1);
+        TileWorker hung = new TileWorker(null, request -> {
+            try {
+                driver.await(); // Stuck in the driver
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return doublePixels(request);
+        }, 0);
+        TileWorker healthy = new TileWorker(null, TestTileWorker::doublePixels, 0);
+        hung.start();
+        healthy.start();
+
+        CLIJxRemoteFilterOp<FloatType, FloatType> op = new CLIJxRemoteFilterOp<>(
+                Views.extendMirrorSingle(source),
+                Arrays.asList(new InetSocketAddress("localhost", hung.getPort()), new InetSocketAddress("localhost", healthy.getPort())),
+                1, DummyFilter.class, null, new FloatType(), false, 4, 4);
+        op.setReadTimeout(200, 0);
+        op.accept(Views.interval(target, Intervals.createMinMax(0, 0, 31, 47))); // Sent to the hung worker first
+        op.accept(Views.interval(target, Intervals.createMinMax(32, 0, 63, 47)));
+        assertDoubled(source, target);
+
+        driver.countDown();
+        op.close();
+        hung.close();
+        healthy.close();
+    }
+
+    @Test
+    public void testConnectionsToFailedWorkersAreNotAttempts() throws Exception {
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(64, 64);
+        TestFastCopy.fillRandom(source);
+        ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(64, 64);
+
+        TileWorker broken = new TileWorker(null, request -> {
+            throw new IllegalStateException("Out of device memory");
+        }, 0);
+        TileWorker slow = new TileWorker(null, request -> {
+            SimulatedDevices.sleep(20);
+            return doublePixels(request);
+        }, 0);
+        broken.start();
+        slow.start();
+
+        // The connection to the healthy worker is mostly busy: the tiles wait for it instead of giving up
+        CLIJxRemoteFilterOp<FloatType, FloatType> op = new CLIJxRemoteFilterOp<>(
+                Views.extendMirrorSingle(source),
+                Arrays.asList(new InetSocketAddress("localhost", broken.getPort()), new InetSocketAddress("localhost", slow.getPort())),
+                1, DummyFilter.class, null, new FloatType(), false, 4, 4);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        List<Future<?>> tiles = new ArrayList<>();
+        for (int x = 0; x < 64; x += 16) {
+            for (int y = 0; y < 64; y += 16) {
+                Interval cell = Intervals.createMinMax(x, y, x + 15, y + 15);
+                tiles.add(threads.submit(() -> op.accept(Views.interval(target, cell))));
+            }
+        }
+        for (Future<?> tile : tiles) tile.get(60, TimeUnit.SECONDS);
+        threads.shutdown();
+        assertDoubled(source, target);
+
+        op.close();
+        broken.close();
+        slow.close();
+    }
+
+    @Test
+    public void testOnlyTileProcessorsAreLoaded() throws IOException {
+        AtomicInteger nHandled = new AtomicInteger();
+        TileWorker worker = new TileWorker(null, request -> {
+            nHandled.incrementAndGet();
+            return doublePixels(request);
+        }, 0);
+        worker.start();
+
+        TileRequest request = new TileRequest();
+        request.id = 1;
+        request.processorClass = NotATileProcessor.class.getName();
+        request.dimensions = new long[]{2, 2};
+        request.inputType = NativeTypeEnum.Float;
+        request.input = new byte[4 * 4];
+        request.outputType = NativeTypeEnum.Float;
+        try (Socket socket = new Socket("localhost", worker.getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            TileProtocol.write(out, request);
+            TileResponse response = TileProtocol.readResponse(new DataInputStream(socket.getInputStream()));
+            Assert.assertNotNull(response.error);
+            Assert.assertTrue(response.error, response.error.contains("not a tile processor"));
+        }
+        Assert.assertEquals(0, nHandled.get());
+        Assert.assertEquals(0, N_INITIALIZED.get());
+        worker.close();
+    }
+
+    static final AtomicInteger N_INITIALIZED = new AtomicInteger(); // Read without initializing NotATileProcessor
+
+    /**
+     * A class which a worker must neither initialize nor instantiate
+     */
+    public static class NotATileProcessor {
+        static {
+            N_INITIALIZED.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testLongErrorsAreTruncated() throws IOException {
+        TileResponse response = new TileResponse();
+        response.id = 1;
+        char[] error = new char[100000];
+        Arrays.fill(error, 'e');
+        response.error = new String(error);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TileProtocol.write(new DataOutputStream(bytes), response);
+        TileResponse read = TileProtocol.readResponse(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        Assert.assertEquals(TileProtocol.MAX_ERROR_LENGTH, read.error.length());
+        Assert.assertTrue(response.error.startsWith(read.error));
+    }
+
+    @Test
+    public void testOversizedPayloadsAreRejected() throws IOException {
+        TileRequest request = new TileRequest();
+        request.processorClass = DummyFilter.class.getName();
+        request.dimensions = new long[]{3, 2};
+        request.inputType = NativeTypeEnum.Float;
+        request.input = new byte[4 * 6 + 1]; // One byte more than the tile
+        request.outputType = NativeTypeEnum.Float;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TileProtocol.write(new DataOutputStream(bytes), request);
+        try {
+            TileProtocol.readRequest(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            Assert.fail("The payload should be rejected");
+        } catch (IOException e) {
+            // Expected, before allocating the payload
+        }
+    }
+
+    @Test
+    public void testClassPath() {
+        String clijx = TileWorker.classPathOf(CLIJx.class);
+        Assert.assertFalse(clijx.isEmpty());
+        Assert.assertTrue(Arrays.asList(TileWorker.getDefaultClassPath().split(File.pathSeparator)).contains(clijx));
+        System.setProperty(TileWorker.CLASS_PATH_PROPERTY, clijx);
+        try {
+            Assert.assertEquals(clijx, TileWorker.getDefaultClassPath());
+        } finally {
+            System.clearProperty(TileWorker.CLASS_PATH_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testRemoteFilteringInAnotherProcess() throws Exception {
+        ArrayImg<FloatType, FloatArray> source = ArrayImgs.floats(64, 48);
+        TestFastCopy.fillRandom(source);
+        ArrayImg<FloatType, FloatArray> target = ArrayImgs.floats(64, 48);
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Process process = TileWorker.launch(TileWorker.getDefaultClassPath(), CpuTileWorker.class, Integer.toString(port));
+        try {
+            CLIJxRemoteFilterOp<FloatType, FloatType> op = new CLIJxRemoteFilterOp<>(
+                    Views.extendMirrorSingle(source),
+                    Arrays.asList(new InetSocketAddress("localhost", port)),
+                    2, DummyFilter.class, null, new FloatType(), false, 4, 4);
+            for (int attempt = 0; ; attempt++) { // Until the worker is listening
+                try {
+                    op.accept(Views.interval(target, Intervals.createMinMax(0, 0, 31, 47)));
+                    break;
+                } catch (RuntimeException e) {
+                    Assert.assertTrue("The worker process did not start", process.isAlive() && (attempt < 300));
+                    Thread.sleep(100);
+                }
+            }
+            op.accept(Views.interval(target, Intervals.createMinMax(32, 0, 63, 47)));
+            op.close();
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+        assertDoubled(source, target);
+    }
+
+    /**
+     * A worker processing the tiles with {@link TestTileWorker#doublePixels(TileRequest)}, which runs without any
+     * OpenCL device in the process started by {@link TestTileWorker#testRemoteFilteringInAnotherProcess()}
+     */
+    public static class CpuTileWorker {
+        public static void main(String... args) throws Exception {
+            TileWorker worker = new TileWorker(null, TestTileWorker::doublePixels, Integer.parseInt(args[0]));
+            worker.start();
+            new CountDownLatch(1).await(); // Until the process is killed
+        }
+    }
+
+    static TileResponse doublePixels(TileRequest request) {
+        RandomAccessibleInterval<? extends RealType<?>> input = (RandomAccessibleInterval) TileProtocol.toImg(request.input, request.inputType, request.dimensions);
+        ArrayImg<FloatType, FloatArray> output = ArrayImgs.floats(request.dimensions);
+        float[] pixels = output.update(null).getCurrentStorageArray();
+        int i = 0;
+        for (RealType<?> pixel : Views.flatIterable(input)) {
+            pixels[i++] = 2 * pixel.getRealFloat();
+        }
+        TileResponse response = new TileResponse();
+        response.id = request.id;
+        response.dimensions = request.dimensions;
+        response.type = NativeTypeEnum.Float;
+        response.data = TileProtocol.toBytes(output);
+        return response;
+    }
+
+    static void assertDoubled(ArrayImg<FloatType, FloatArray> source, ArrayImg<FloatType, FloatArray> target) {
+        float[] s = source.update(null).getCurrentStorageArray();
+        float[] t = target.update(null).getCurrentStorageArray();
+        for (int i = 0; i < s.length; i++) {
+            Assert.assertEquals(2 * s[i], t[i], 0);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package net.haesleinhuepf.clijx.parallel.implementations;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clijx.parallel.AbstractTileProcessor;
+
+/**
+ * A processor with a parameter, which can be set by name, see CLIJxFilterOp.setParameter or CLIJxSweepOp.
+ */
+public class GaussianBlurFilter extends AbstractTileProcessor {
+
+    public float sigma = 1;
+
+    @Override
+    public void accept(ClearCLBuffer input, ClearCLBuffer output) {
+        if (input.getDimension() == 2) {
+            clijx.gaussianBlur2D(input, output, sigma, sigma);
+        } else {
+            clijx.gaussianBlur3D(input, output, sigma, sigma, sigma);
+        }
+    }
+}